@@ -165,6 +165,11 @@ public class PlayerVisualizer implements Visualizer.OnDataCaptureListener {
         mTimeMillis = System.currentTimeMillis() + delay;
     }
 
+    /** Aligns the color cycle to a clock shared by every speaker of the sender. */
+    public static synchronized void syncTimeMillis(long sharedMillis){
+        mTimeMillis = System.currentTimeMillis() - sharedMillis;
+    }
+
     @Override
     public void onWaveFormDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
 
@@ -9,17 +9,18 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
-import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioManager;
 import android.media.AudioTrack;
 import android.net.LocalServerSocket;
 import android.net.LocalSocket;
+import android.net.wifi.WifiManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
@@ -31,40 +32,132 @@ import androidx.core.content.ContextCompat;
 import com.phicomm.speaker.player.light.PlayerVisualizer;
 import com.picapico.audioshare.musiche.player.AudioPlayer;
 import com.picapico.audioshare.musiche.HttpServer;
+import com.picapico.audioshare.metrics.Metrics;
 import com.picapico.audioshare.musiche.notification.NotificationService;
+import com.picapico.audioshare.pcm.AudioTrackPool;
+import com.picapico.audioshare.pcm.ClockSync;
+import com.picapico.audioshare.pcm.FrameHeader;
+import com.picapico.audioshare.pcm.FrameReader;
+import com.picapico.audioshare.pcm.GlitchStats;
+import com.picapico.audioshare.pcm.HandshakeServer;
+import com.picapico.audioshare.pcm.JitterEstimator;
+import com.picapico.audioshare.pcm.LatencyHistogram;
+import com.picapico.audioshare.pcm.PcmRingBuffer;
+import com.picapico.audioshare.pcm.PcmSource;
+import com.picapico.audioshare.pcm.PcmWriter;
+import com.picapico.audioshare.pcm.RelayHub;
+import com.picapico.audioshare.pcm.StreamOptions;
+import com.picapico.audioshare.pcm.StreamSession;
+import com.picapico.audioshare.pcm.TelemetryReporter;
+import com.picapico.audioshare.pcm.TrackBufferController;
+import com.picapico.audioshare.pcm.UdpReceiver;
+import com.picapico.audioshare.pcm.codec.PcmDecoder;
 
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
+import java.net.MulticastSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class TcpService extends NotificationService {
     private static final String TAG = "AudioShareService";
     private static final String HEAD = "picapico-audio-share";
+    private static final int PCM_RING_CAPACITY = 16;
+    private static final int MAX_JITTER_DEPTH_MILLIS = 500;
+    private static final int UDP_REORDER_MILLIS = 20;
+    private static final int MAX_MIX_STREAMS = 4;
+    private static final String LOCAL_ADDRESS = "local";
+    private static final int MAX_FRAME_SIZE = 1024 * 1024;
+    private static final byte COMMAND_AUDIO_EXTENDED = 5;
+    private static final byte COMMAND_CLOCK = 6;
+    private static final int MAX_CLOCK_ROUNDS = 16;
+    private static final int CLOCK_ROUND_TIMEOUT_MILLIS = 300;
+    private static final int CLOCK_DEADLINE_MILLIS = 2000;
+    private static final int CLOCK_WORKERS = 2;
+    private static final byte COMMAND_RELAY = 7;
+    private static final int RELAY_QUEUE_BYTES = 512 * 1024;
+    private static final int MAX_RELAY_SUBSCRIBERS = 4;
+    private static final long RELAY_RETRY_MILLIS = 2000;
+    private static final byte COMMAND_CONTROL_SESSION = 8;
+    private static final int MAX_CONTROL_SESSIONS = 4;
+    private static final int MAX_CONTROL_PAYLOAD = 64;
+    private static final int CONTROL_SESSION_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 3000;
+    private static final int RESUME_GRACE_MILLIS = 10 * 1000;
+    private static final int TRACK_POOL_SIZE = 2;
+    private static final int TRACK_BUFFER_HEADROOM = 4;
+    private static final int SILENCE_IDLE_MILLIS = 30 * 1000;
+    private static final int MAX_PENDING_HANDSHAKES = 64;
+    private static final int CONTROL_WORKERS = 2;
+    private static final int CONTROL_QUEUE_SIZE = 32;
     public  static final String CHANNEL_ID = "com.picapico.audio_share";
     public static int NOTIFICATION_ID = 1;
     private final IBinder binder = new TcpBinder();
     private MessageListener mListener;
     private LocalServerSocket localServerSocket = null;
-    private ServerSocket serverSocket = null;
+    private ServerSocketChannel serverSocket = null;
     private AudioManager mAudioManager = null;
     private AudioTrack mAudioTrack = null;
-    private OutputStream mSocketOutputStream = null;
+    private final AudioTrackPool mTrackPool = new AudioTrackPool(TRACK_POOL_SIZE);
+    private PcmWriter mMixer = null;
+    private TrackBufferController mBufferController = null;
+    private String mBufferKey = null;
+    private final Object mMixerLock = new Object();
+    private final Map<String, Closeable> mPlayerClosers = new HashMap<>();
+    private final Map<String, ClockSync> mClocks = new HashMap<>();
+    private final Map<Integer, StreamSession> mSessions = new HashMap<>();
+    private final List<StreamSession> mActiveSessions = new CopyOnWriteArrayList<>();
+    private final SecureRandom mRandom = new SecureRandom();
+    private final RelayHub mRelayHub = new RelayHub(HEAD.getBytes(), COMMAND_AUDIO_EXTENDED,
+            RELAY_QUEUE_BYTES, MAX_RELAY_SUBSCRIBERS);
+    private volatile boolean mRelayClientRunning = false;
+    private WifiManager.MulticastLock mMulticastLock = null;
+    private HandshakeServer mHandshakeServer = null;
+    private final ThreadPoolExecutor mStreamExecutor = new ThreadPoolExecutor(0, MAX_MIX_STREAMS * 2,
+            30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final ThreadPoolExecutor mSessionExecutor = new ThreadPoolExecutor(0, MAX_CONTROL_SESSIONS,
+            30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final ThreadPoolExecutor mControlExecutor = new ThreadPoolExecutor(CONTROL_WORKERS, CONTROL_WORKERS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(CONTROL_QUEUE_SIZE));
+    private final ThreadPoolExecutor mClockExecutor = new ThreadPoolExecutor(CLOCK_WORKERS, CLOCK_WORKERS,
+            30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(CONTROL_QUEUE_SIZE));
+    private final List<OutputStream> mSocketOutputStreams = new CopyOnWriteArrayList<>();
+    private final ScheduledThreadPoolExecutor mSessionScheduler = new ScheduledThreadPoolExecutor(1);
+    private final Map<OutputStream, ThreadPoolExecutor> mDtxWriters = new ConcurrentHashMap<>();
+    private final List<TelemetryReporter> mTelemetryReporters = new CopyOnWriteArrayList<>();
     private int maxAudioVolume = 15;
 
-    private boolean isWriting = false;
     private WakeLockManager mWakeLockManager;
-    private final ExecutorService mExecutorService = Executors.newSingleThreadExecutor();
     private final Handler mHandler = new Handler(Looper.getMainLooper());
     private HttpServer httpServer;
     private SharedPreferences mSharedPreferences;
@@ -72,14 +165,22 @@ public class TcpService extends NotificationService {
     public void onCreate() {
         super.onCreate();
         mWakeLockManager = new WakeLockManager(this);
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if(wifiManager != null){
+            mMulticastLock = wifiManager.createMulticastLock(TAG);
+            mMulticastLock.setReferenceCounted(true);
+        }
         Log.i(TAG, "Service on created");
         new Thread(this::startLocalServer).start();
         new Thread(this::startServer).start();
         mSharedPreferences = getSharedPreferences("app", Context.MODE_PRIVATE);
+        mTrackPool.prewarm(getTrackFormats());
         if(mSharedPreferences.getBoolean("http-server", true)){
             this.startHttpServer();
         }
         this.startBroadcastTimer();
+        this.startTelemetryTimer();
+        this.startRelayClient();
     }
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -97,7 +198,6 @@ public class TcpService extends NotificationService {
     public void onDestroy() {
         super.onDestroy();
         stopForeground(true);
-        stopAudio();
         Log.i(TAG, "Service on destroy");
         try {
             if(localServerSocket != null){
@@ -116,8 +216,28 @@ public class TcpService extends NotificationService {
             Log.e(TAG, "close tcp server error: " + e);
         }
         if(httpServer != null) httpServer.stop();
+        mRelayClientRunning = false;
+        mRelayHub.shutdown();
+        synchronized (mMixerLock) {
+            mSessions.clear();
+            for (Closeable closer : mPlayerClosers.values()) {
+                try {
+                    closer.close();
+                } catch (IOException ignored) {
+                }
+            }
+            closeMixer();
+        }
+        if(mHandshakeServer != null) mHandshakeServer.stop();
+        mControlExecutor.shutdownNow();
+        mClockExecutor.shutdownNow();
+        mSessionScheduler.shutdownNow();
+        mSessionExecutor.shutdownNow();
+        mStreamExecutor.shutdown();
+        mTrackPool.clear();
     }
 
+    /** Command byte after the magic, its high nibble carries the frame version of audio streams. */
     private byte readHead(InputStream stream) throws IOException {
         int bufferLength = HEAD.length();
         byte[] buffer = new byte[bufferLength];
@@ -129,7 +249,12 @@ public class TcpService extends NotificationService {
         }
         if(new String(buffer).equalsIgnoreCase(HEAD)){
             while ((bytesRead = stream.read(buffer, 0, 1)) != -1){
-                if(bytesRead >= 1) return buffer[0];
+                if(bytesRead < 1) continue;
+                if(FrameHeader.versionOf(buffer[0]) > FrameHeader.MAX_VERSION){
+                    Log.w(TAG, "unsupported frame version: " + FrameHeader.versionOf(buffer[0]));
+                    return 0;
+                }
+                return buffer[0];
             }
         }
         return 0;
@@ -149,8 +274,34 @@ public class TcpService extends NotificationService {
         return parseInt(buffer);
     }
 
+    private void readFully(InputStream stream, byte[] data, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int bytesRead = stream.read(data, offset, length - offset);
+            if(bytesRead < 0) throw new IOException("read stream eol.");
+            offset += bytesRead;
+        }
+    }
+
+    private long readLong(InputStream stream) throws IOException {
+        long low = readInt(stream) & 0xFFFFFFFFL;
+        return low | ((long) readInt(stream) << 32);
+    }
+
+    private void readOptions(InputStream stream, StreamOptions options) throws IOException {
+        int count = readInt(stream);
+        if(count < 0 || count > StreamOptions.MAX_OPTION_COUNT){
+            throw new IOException("invalid option count: " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            int key = readInt(stream);
+            int value = readInt(stream);
+            options.putRequested(key, value);
+        }
+    }
+
     private int lastPCVolume = 1;
-    private void processControlStream(byte command, InputStream stream) {
+    private void processControlStream(byte command, InputStream stream, OutputStream outputStream, String address) {
         if(command == 2){
             try {
                 int volume = readInt(stream);
@@ -160,16 +311,22 @@ public class TcpService extends NotificationService {
                 Log.e(TAG, "read volume error: " + e);
             }
         }else if(command == 3) {
-            PlayerVisualizer.updateTimeMillis();
+            ClockSync clock = getClock(address);
+            if(clock.isSynced()) {
+                PlayerVisualizer.syncTimeMillis(clock.senderNowMicros() / 1000);
+            }else {
+                PlayerVisualizer.updateTimeMillis();
+            }
         }else if(command == 4) {
-            if(getPlaying() && getPlayerCloser() != null){
+            expireSessions(address);
+            Closeable closer = getPlayerCloser(address);
+            if(closer != null){
                 try {
-                    getPlayerCloser().close();
+                    closer.close();
                 } catch (IOException ignored) {
                 }
-                setPlayerCloser(null);
                 for (int i = 0; i < 10; i++) {
-                    if(!getPlaying()) break;
+                    if(getPlayerCloser(address) == null) break;
                     try {
                         Thread.sleep(50);
                     } catch (InterruptedException ignored) {
@@ -179,6 +336,98 @@ public class TcpService extends NotificationService {
         }
     }
 
+    /**
+     * Long-lived control connection, so a sender moving the volume slider does not open a socket
+     * per step. After the ready byte every frame is a command byte, a little endian payload length
+     * and the payload the one-shot command would carry; each frame is acked with its command byte.
+     * Command 0 only keeps the session alive, the clock exchange needs its own connection.
+     */
+    private void runControlSession(Closeable socket, InputStream stream, OutputStream outputStream,
+                                   String address) throws IOException {
+        if(socket instanceof Socket) ((Socket)socket).setSoTimeout(CONTROL_SESSION_TIMEOUT_MILLIS);
+        if(socket instanceof LocalSocket) ((LocalSocket)socket).setSoTimeout(CONTROL_SESSION_TIMEOUT_MILLIS);
+        Log.i(TAG, "control session opened: " + address);
+        byte[] payload = new byte[MAX_CONTROL_PAYLOAD];
+        try {
+            outputStream.write(0);
+            outputStream.flush();
+            int command;
+            while ((command = stream.read()) >= 0) {
+                int length = readInt(stream);
+                if(length < 0 || length > MAX_CONTROL_PAYLOAD){
+                    throw new IOException("invalid control length: " + length);
+                }
+                readFully(stream, payload, length);
+                processControlFrame((byte) command, payload, 0, length, address);
+                outputStream.write(command);
+                outputStream.flush();
+            }
+        } catch (IOException e) {
+            Log.i(TAG, "control session end: " + e);
+        } finally {
+            socket.close();
+        }
+    }
+
+    /** Runs one typed control frame coming from a control session or a v2 audio stream. */
+    private void processControlFrame(byte command, byte[] payload, int offset, int length, String address) {
+        if(command == 0 || command == COMMAND_CLOCK) return;
+        processControlStream(command, new ByteArrayInputStream(payload, offset, length), null, address);
+    }
+
+    /**
+     * NTP style exchange, the sender announces the rounds then per round sends t1, gets t2 and t3
+     * back and answers with t4, all little endian microseconds. The visualizer color cycle follows
+     * the shared clock afterwards.
+     * Runs on its own workers so slow peers cannot hold up volume and stop commands. Every read
+     * waits at most a round timeout, and the whole exchange has to finish before the deadline.
+     */
+    private void syncClock(Closeable socket, InputStream stream, OutputStream outputStream, ClockSync clock) throws IOException {
+        long deadline = SystemClock.elapsedRealtime() + CLOCK_DEADLINE_MILLIS;
+        setClockTimeout(socket, deadline);
+        int rounds = readInt(stream);
+        if(rounds < 1 || rounds > MAX_CLOCK_ROUNDS){
+            throw new IOException("invalid clock rounds: " + rounds);
+        }
+        byte[] reply = new byte[16];
+        for (int i = 0; i < rounds; i++) {
+            setClockTimeout(socket, deadline);
+            long t1 = readLong(stream);
+            long t2 = ClockSync.nowMicros();
+            putLong(reply, 0, t2);
+            long t3 = ClockSync.nowMicros();
+            putLong(reply, 8, t3);
+            outputStream.write(reply);
+            outputStream.flush();
+            setClockTimeout(socket, deadline);
+            long t4 = readLong(stream);
+            clock.addSample(t1, t2, t3, t4);
+        }
+        outputStream.write(0);
+        outputStream.flush();
+        PlayerVisualizer.syncTimeMillis(clock.senderNowMicros() / 1000);
+        Log.i(TAG, "sync clock offset " + clock.getOffsetMicros() + "us, rtt " + clock.getRoundTripMicros() + "us");
+    }
+
+    private static void setClockTimeout(Closeable socket, long deadline) throws IOException {
+        long remaining = deadline - SystemClock.elapsedRealtime();
+        if(remaining <= 0) throw new IOException("clock sync deadline passed");
+        int timeout = (int) Math.min(CLOCK_ROUND_TIMEOUT_MILLIS, remaining);
+        if(socket instanceof Socket) ((Socket)socket).setSoTimeout(timeout);
+        if(socket instanceof LocalSocket) ((LocalSocket)socket).setSoTimeout(timeout);
+    }
+
+    private ClockSync getClock(String address) {
+        synchronized (mClocks) {
+            ClockSync clock = mClocks.get(address);
+            if(clock == null) {
+                clock = new ClockSync();
+                mClocks.put(address, clock);
+            }
+            return clock;
+        }
+    }
+
     private void setVolume(int volume) {
         mHandler.post(() -> {
             try {
@@ -192,43 +441,156 @@ public class TcpService extends NotificationService {
         });
     }
 
-    private void processSocketClient(Closeable socket) throws IOException {
+    /** Total handshake length needed for the bytes received so far, -1 when it is not a valid client. */
+    private int getHandshakeLength(byte[] data, int count) {
+        int length = HEAD.length() + 1;
+        if(count < length) return length;
+        if(!new String(data, 0, HEAD.length()).equalsIgnoreCase(HEAD)) return -1;
+        byte head = data[HEAD.length()];
+        if(FrameHeader.versionOf(head) > FrameHeader.MAX_VERSION) return -1;
+        byte command = FrameHeader.commandOf(head);
+        if(command == 1) return length + 8;
+        if(command == 2 || command == COMMAND_CLOCK) return length + 4;
+        if(command != COMMAND_AUDIO_EXTENDED) return length;
+        length += 12;
+        if(count < length) return length;
+        int optionCount = parseInt(Arrays.copyOfRange(data, length - 4, length));
+        if(optionCount < 0 || optionCount > StreamOptions.MAX_OPTION_COUNT) return -1;
+        return length + optionCount * 8;
+    }
+
+    /** Reads a handshake from a blocking stream, used by clients that can not go through the selector. */
+    private byte[] readHandshake(InputStream stream) throws IOException {
+        byte[] data = new byte[HandshakeServer.MAX_HANDSHAKE_SIZE];
+        int count = 0;
+        int length;
+        while ((length = getHandshakeLength(data, count)) > count) {
+            if(length > data.length) throw new IOException("handshake too long: " + length);
+            int bytesRead = stream.read(data, count, length - count);
+            if(bytesRead < 0) throw new IOException("read stream eol.");
+            count += bytesRead;
+        }
+        if(length < 0) throw new IOException("invalid handshake");
+        return Arrays.copyOf(data, count);
+    }
+
+    /** Hands a client whose handshake is complete to the stream or the control workers. */
+    private void dispatchClient(Closeable socket, byte[] handshake) throws IOException {
         InputStream stream;
         OutputStream outputStream;
-        boolean isLocal = false;
+        boolean isLocal;
+        String address;
         if (socket instanceof LocalSocket){
             stream = ((LocalSocket)socket).getInputStream();
             outputStream = ((LocalSocket)socket).getOutputStream();
+            address = LOCAL_ADDRESS;
             isLocal = true;
         }else if (socket instanceof Socket){
             stream = ((Socket)socket).getInputStream();
             outputStream = ((Socket)socket).getOutputStream();
+            address = ((Socket)socket).getInetAddress().getHostAddress();
+            isLocal = false;
         }else {
             return;
         }
-        byte command = readHead(stream);
-        Log.i(TAG, "client connected: " + command);
-        if(command == 1 && !getPlaying()){
+        InputStream input = new SequenceInputStream(new ByteArrayInputStream(handshake), stream);
+        byte command = FrameHeader.commandOf(handshake[HEAD.length()]);
+        ThreadPoolExecutor executor = command == 1 || command == COMMAND_AUDIO_EXTENDED ? mStreamExecutor :
+                command == COMMAND_CONTROL_SESSION ? mSessionExecutor :
+                command == COMMAND_CLOCK ? mClockExecutor : mControlExecutor;
+        executor.execute(() -> {
+            try {
+                processSocketClient(socket, input, outputStream, address, isLocal);
+            } catch (Exception e) {
+                Log.e(TAG, "process client error: " + e);
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /** Runs on a worker, streams play until they end, control commands return right away. */
+    private void processSocketClient(Closeable socket, InputStream stream, OutputStream outputStream,
+                                     String address, boolean isLocal) throws IOException {
+        byte head = readHead(stream);
+        byte command = FrameHeader.commandOf(head);
+        int frameVersion = FrameHeader.versionOf(head);
+        Log.i(TAG, "client connected: " + command + ", frame version " + frameVersion);
+        if(command == 1 || command == COMMAND_AUDIO_EXTENDED){
             int sampleRate = readInt(stream);
             int channel = readInt(stream);
-            int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
-            int bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRate, channel, audioFormat);
+            StreamOptions options = new StreamOptions(sampleRate, channel, frameVersion,
+                    command == COMMAND_AUDIO_EXTENDED);
+            if(options.isExtended()){
+                readOptions(stream, options);
+            }
+            int codec = options.getRequested(StreamOptions.OPTION_CODEC, PcmDecoder.CODEC_PCM);
+            options.setCodec(PcmDecoder.isSupported(codec) ? codec : PcmDecoder.CODEC_PCM);
+            int sampleFormat = options.getRequested(StreamOptions.OPTION_SAMPLE_FORMAT, StreamOptions.FORMAT_PCM_16);
+            if(options.hasRequested(StreamOptions.OPTION_SAMPLE_FORMAT)){
+                options.setSampleFormat(options.getCodec() == PcmDecoder.CODEC_PCM &&
+                        StreamOptions.isSupportedFormat(sampleFormat) ? sampleFormat : StreamOptions.FORMAT_PCM_16);
+            }
+            int bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRate, channel, AudioFormat.ENCODING_PCM_16BIT)
+                    / 2 * options.getBytesPerSample();
+            int maxFrameSize = options.getRequested(StreamOptions.OPTION_MAX_FRAME_SIZE, options.getBytesPerSecond());
+            options.setBufferSize(bufferSizeInBytes);
+            options.setMaxFrameSize(Math.max(bufferSizeInBytes, Math.min(maxFrameSize, MAX_FRAME_SIZE)));
+            int transport = options.getRequested(StreamOptions.OPTION_TRANSPORT, StreamOptions.TRANSPORT_TCP);
+            if(!isLocal && transport == StreamOptions.TRANSPORT_UDP){
+                options.setTransport(StreamOptions.TRANSPORT_UDP);
+            }else if(!isLocal && transport == StreamOptions.TRANSPORT_MULTICAST && mMulticastLock != null){
+                int port = options.getRequested(StreamOptions.OPTION_UDP_PORT, 0);
+                int group = options.getRequested(StreamOptions.OPTION_MULTICAST_GROUP, 0);
+                if(port > 0 && port <= 0xFFFF &&
+                        InetAddress.getByAddress(StreamOptions.toAddress(group)).isMulticastAddress()){
+                    options.setTransport(StreamOptions.TRANSPORT_MULTICAST);
+                    options.setMulticastGroup(group);
+                    options.setUdpPort(port);
+                }
+            }
+            if(options.hasRequested(StreamOptions.OPTION_RESUME_TOKEN) && getResumeGraceMillis() > 0){
+                options.setResumeToken(options.getRequested(StreamOptions.OPTION_RESUME_TOKEN, 0));
+            }
+            if(options.hasRequested(StreamOptions.OPTION_DTX)){
+                options.setDtx(options.getRequested(StreamOptions.OPTION_DTX, 0) != 0 && getSilenceIdleMillis() > 0);
+            }
+            if(options.hasRequested(StreamOptions.OPTION_LATENCY_PROBE)){
+                options.setLatencyProbe(options.getRequested(StreamOptions.OPTION_LATENCY_PROBE, 0) != 0 &&
+                        frameVersion >= FrameHeader.VERSION_2);
+            }
+            int telemetryInterval = options.getRequested(StreamOptions.OPTION_TELEMETRY_INTERVAL, 0);
+            if(telemetryInterval > 0){
+                options.setTelemetryInterval(TelemetryReporter.clampInterval(telemetryInterval));
+            }
+            ReadableByteChannel readChannel;
             if(isLocal){
-                ((LocalSocket)socket).setReceiveBufferSize(bufferSizeInBytes);
+                ((LocalSocket)socket).setReceiveBufferSize(bufferSizeInBytes * PCM_RING_CAPACITY);
+                readChannel = Channels.newChannel(stream);
             }else {
-                ((Socket)socket).setReceiveBufferSize(bufferSizeInBytes);
-            }
-            new Thread(() -> playAudio(
-                    sampleRate,
-                    channel,
-                    audioFormat,
-                    bufferSizeInBytes,
-                    socket,
-                    stream,
-                    outputStream
-            )).start();
+                ((Socket)socket).setReceiveBufferSize(bufferSizeInBytes * PCM_RING_CAPACITY);
+                SocketChannel socketChannel = ((Socket)socket).getChannel();
+                readChannel = socketChannel != null ? socketChannel : Channels.newChannel(stream);
+            }
+            playAudio(options, address, socket, readChannel, outputStream);
+        }else if(command == COMMAND_RELAY && !isLocal && mSharedPreferences.getBoolean("relay-enabled", false)){
+            SocketChannel socketChannel = ((Socket)socket).getChannel();
+            mRelayHub.addSubscriber(address, socket, stream,
+                    socketChannel != null ? socketChannel : Channels.newChannel(outputStream));
+        }else if(command == COMMAND_CONTROL_SESSION){
+            runControlSession(socket, stream, outputStream, address);
+        }else if(command == COMMAND_CLOCK){
+            try {
+                syncClock(socket, stream, outputStream, getClock(address));
+            } catch (IOException e) {
+                Log.e(TAG, "sync clock error: " + e);
+            }
+            socket.close();
         }else {
-            processControlStream(command, stream);
+            if(socket instanceof Socket) ((Socket)socket).setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            processControlStream(command, stream, outputStream, address);
             socket.close();
         }
     }
@@ -242,7 +604,10 @@ public class TcpService extends NotificationService {
                 try {
                     clientSocket = localServerSocket.accept();
                     Log.i(TAG, "local server client accept");
-                    processSocketClient(clientSocket);
+                    clientSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    byte[] handshake = readHandshake(clientSocket.getInputStream());
+                    clientSocket.setSoTimeout(0);
+                    dispatchClient(clientSocket, handshake);
                 } catch (Exception e) {
                     if(clientSocket != null){
                         try {
@@ -287,32 +652,83 @@ public class TcpService extends NotificationService {
         httpServer.setSharedPreferences(getSharedPreferences("config", Context.MODE_PRIVATE));
         httpServer.setAssetManager(getAssets());
         httpServer.setVersionName(mVersionName);
+        httpServer.setStreamStatsProvider(this::getLatencyStats);
+        httpServer.setChannelListener(this::onChannelChanged);
+    }
+
+    /** Channel setting of the musiche player, PCM streams play the same channel. */
+    private int getChannel() {
+        if(httpServer != null) return httpServer.getAudioPlayer().getChannel();
+        return getSharedPreferences("config", Context.MODE_PRIVATE).getInt("channel", AudioPlayer.ChannelTypeStereo);
+    }
+
+    private void onChannelChanged(@AudioPlayer.ChannelType int channel) {
+        synchronized (mMixerLock) {
+            for (StreamSession session : mSessions.values()) {
+                session.getSource().setChannelSelection(channel);
+            }
+        }
+        for (StreamSession session : mActiveSessions) {
+            session.getSource().setChannelSelection(channel);
+        }
+    }
+
+    /** Probed latency of the playing streams in microseconds, with the settings that affect it. */
+    private List<Map<String, Object>> getLatencyStats() {
+        List<Map<String, Object>> stats = new ArrayList<>();
+        PcmWriter mixer = mMixer;
+        for (StreamSession session : mActiveSessions) {
+            StreamOptions options = session.getOptions();
+            LatencyHistogram latency = session.getSource().getLatency();
+            Map<String, Object> item = new HashMap<>();
+            item.put("address", session.getAddress());
+            item.put("codec", options.getCodec());
+            item.put("sampleFormat", options.getSampleFormat());
+            item.put("transport", options.getTransport());
+            item.put("jitterTarget", session.getJitter().getTargetBytes() / (options.getChannelCount() * options.getBytesPerSample()));
+            item.put("trackBuffer", mixer == null ? 0 : mixer.getBufferFrames());
+            item.put("samples", latency.getTotal());
+            item.put("last", latency.getLastMicros());
+            item.put("min", latency.getMinMicros());
+            item.put("max", latency.getMaxMicros());
+            item.put("p50", latency.getPercentileMicros(50));
+            item.put("p90", latency.getPercentileMicros(90));
+            item.put("p99", latency.getPercentileMicros(99));
+            item.put("glitches", session.getSource().getGlitches().toMap());
+            stats.add(item);
+        }
+        return stats;
     }
     private void startServer(){
         Log.i(TAG, "prepare tcp start server");
         try {
             int port = NetworkUtils.getFreePort();
-            serverSocket = new ServerSocket(port);
+            serverSocket = ServerSocketChannel.open();
+            serverSocket.socket().bind(new InetSocketAddress(port));
             if(mListener != null){
                 mListener.onMessage();
             }
             setListenPort(port);
-            while (serverSocket != null && !serverSocket.isClosed()){
-                Socket clientSocket = null;
-                try {
-                    clientSocket = serverSocket.accept();
-                    clientSocket.setTcpNoDelay(true);
-                    processSocketClient(clientSocket);
-                } catch (Exception e) {
-                    if(clientSocket != null){
+            mHandshakeServer = new HandshakeServer(serverSocket, new HandshakeServer.Listener() {
+                @Override
+                public int getHandshakeLength(byte[] data, int count) {
+                    return TcpService.this.getHandshakeLength(data, count);
+                }
+
+                @Override
+                public void onHandshake(SocketChannel channel, byte[] handshake) {
+                    try {
+                        dispatchClient(channel.socket(), handshake);
+                    } catch (Exception e) {
+                        Log.e(TAG, "accept tcp client error: " + e);
                         try {
-                            clientSocket.close();
-                        } catch (Exception ignored) {
+                            channel.close();
+                        } catch (IOException ignored) {
                         }
                     }
-                    Log.e(TAG, "accept tcp server error: " + e);
                 }
-            }
+            }, HANDSHAKE_TIMEOUT_MILLIS, MAX_PENDING_HANDSHAKES);
+            mHandshakeServer.run();
         } catch (Exception e) {
             Log.e(TAG, "start tcp server error: " + e);
         } finally {
@@ -327,18 +743,15 @@ public class TcpService extends NotificationService {
     }
 
     private boolean isPlaying = false;
-    private Closeable playerCloser = null;
 
     private synchronized void setPlaying(boolean playing) {
         isPlaying = playing;
     }
 
-    private synchronized void setPlayerCloser(Closeable closer) {
-        playerCloser = closer;
-    }
-
-    private synchronized Closeable getPlayerCloser() {
-        return playerCloser;
+    private Closeable getPlayerCloser(String address) {
+        synchronized (mMixerLock) {
+            return mPlayerClosers.get(address);
+        }
     }
 
     public synchronized boolean getPlaying() {
@@ -404,93 +817,230 @@ public class TcpService extends NotificationService {
         if(httpServer != null) httpServer.setVersionName(versionName);
     }
 
-    private void playAudio(int sampleRateInHz, int channelConfig, int audioEncoding, int bufferSizeInBytes, Closeable closer, InputStream inputStream, OutputStream outputStream){
-        if(getPlaying()) return;
-        setPlaying(true);
-        setPlayerCloser(closer);
+    private void playAudio(StreamOptions options, String address, Closeable closer, ReadableByteChannel readChannel, OutputStream outputStream){
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        StreamSession session;
+        if(options.getResumeToken() != 0) takeOverSession(options.getResumeToken());
+        synchronized (mMixerLock) {
+            session = mPlayerClosers.containsKey(address) ? null : resumeSession(options);
+            if(session == null && (mPlayerClosers.containsKey(address) ||
+                    mPlayerClosers.size() + getParkedCount() >= MAX_MIX_STREAMS)) {
+                Log.w(TAG, "reject audio stream from " + address);
+                try {
+                    closer.close();
+                } catch (Exception ignored) {
+                }
+                return;
+            }
+            mPlayerClosers.put(address, () -> {
+                stopped.set(true);
+                closer.close();
+            });
+        }
         if(mListener != null){
             mListener.onMessage();
         }
+        PcmWriter mixer = null;
+        PcmSource source = null;
+        UdpReceiver udpReceiver = null;
+        TelemetryReporter telemetry = null;
+        boolean relayed = false;
+        boolean multicastLocked = false;
+        boolean park = false;
+        boolean resumed = session != null;
+        long firstAudioMillis = -1;
         try {
-            initNotification();
-            mWakeLockManager.acquireWakeLock();
-            AudioFormat audioFormat = new AudioFormat.Builder()
-                    .setChannelMask(channelConfig)
-                    .setEncoding(audioEncoding)
-                    .setSampleRate(sampleRateInHz)
-                    .build();
-            AudioAttributes.Builder audioAttributes = new AudioAttributes.Builder()
-                    .setLegacyStreamType(AudioManager.STREAM_MUSIC)
-                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-                audioAttributes.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
-            }
-            if(httpServer != null) httpServer.getAudioPlayer().pause();
-            mAudioTrack = new AudioTrack(
-                    audioAttributes.build(),
-                    audioFormat,
-                    bufferSizeInBytes,
-                    AudioTrack.MODE_STREAM,
-                    AudioManager.AUDIO_SESSION_ID_GENERATE);
-            setVolume(0);
-            byte[] buffer = new byte[bufferSizeInBytes];
+            synchronized (mMixerLock) {
+                mixer = openMixer(options, getBufferKey(closer, address));
+            }
+            int bufferSizeInBytes = options.getBufferSize();
             int dataLength;
-            mAudioTrack.play();
-            PlayerVisualizer.startBase(mAudioTrack.getAudioSessionId());
-            Log.i(TAG, "play audio ready to read");
-            outputStream.write(new byte[1]);
+            int pcmLength;
+            if(session == null) {
+                int token = 0;
+                if(options.isResumable()) {
+                    synchronized (mMixerLock) {
+                        while (token == 0 || mSessions.containsKey(token)) token = mRandom.nextInt();
+                    }
+                    options.setResumeToken(token);
+                }
+                PcmRingBuffer ringBuffer = new PcmRingBuffer(PCM_RING_CAPACITY, bufferSizeInBytes);
+                JitterEstimator jitter = new JitterEstimator(options.getBytesPerSecond(),
+                        mSharedPreferences.getInt("pcm-buffer-min-ms", 20), MAX_JITTER_DEPTH_MILLIS);
+                source = new PcmSource(ringBuffer, jitter, options.getSampleRate(), options.getChannelCount(),
+                        options.getSampleFormat(), mixer.getSampleRate(), mixer.getChannels());
+                source.setGain(options.getGain() / 100f);
+                source.setClock(getClock(address));
+                source.setChannelSelection(getChannel());
+                session = new StreamSession(token, address, options, ringBuffer, jitter, source,
+                        PcmDecoder.create(options.getCodec(), options.getChannelCount()));
+                if(token != 0) {
+                    synchronized (mMixerLock) {
+                        mSessions.put(token, session);
+                    }
+                }
+            }else {
+                source = session.getSource();
+                source.setGain(options.getGain() / 100f);
+                source.setClock(getClock(address));
+            }
+            PcmRingBuffer ringBuffer = session.getBuffer();
+            JitterEstimator jitter = session.getJitter();
+            PcmDecoder decoder = session.getDecoder();
+            GlitchStats glitches = source.getGlitches();
+            long lost = 0;
+            FrameReader reader = new FrameReader(readChannel, options.getFrameVersion(),
+                    options.getMaxFrameSize(), bufferSizeInBytes);
+            FrameHeader header = new FrameHeader();
+            ByteBuffer encoded = decoder == null && options.getFrameVersion() == FrameHeader.VERSION_1 ?
+                    null : ByteBuffer.allocateDirect(options.getMaxFrameSize());
+            ByteBuffer control = null;
+            if(options.getTransport() == StreamOptions.TRANSPORT_UDP) {
+                DatagramSocket udpSocket = new DatagramSocket(0);
+                udpSocket.setReceiveBufferSize(bufferSizeInBytes * PCM_RING_CAPACITY);
+                options.setUdpPort(udpSocket.getLocalPort());
+                udpReceiver = new UdpReceiver(udpSocket, ringBuffer, decoder, jitter, mixer,
+                        options.getMaxFrameSize(), UDP_REORDER_MILLIS);
+                udpReceiver.setGlitches(glitches);
+                udpReceiver.setFrameBytes(options.getChannelCount() * options.getBytesPerSample());
+                if(closer instanceof Socket) udpReceiver.setPeer(((Socket) closer).getInetAddress());
+            }else if(options.getTransport() == StreamOptions.TRANSPORT_MULTICAST) {
+                MulticastSocket multicastSocket = new MulticastSocket(options.getUdpPort());
+                multicastSocket.setReceiveBufferSize(bufferSizeInBytes * PCM_RING_CAPACITY);
+                multicastSocket.joinGroup(InetAddress.getByAddress(options.getMulticastGroup()));
+                mMulticastLock.acquire();
+                multicastLocked = true;
+                udpReceiver = new UdpReceiver(multicastSocket, ringBuffer, decoder, jitter, mixer,
+                        options.getMaxFrameSize(), UDP_REORDER_MILLIS);
+                udpReceiver.setGlitches(glitches);
+                udpReceiver.setFrameBytes(options.getChannelCount() * options.getBytesPerSample());
+                if(closer instanceof Socket) udpReceiver.setPeer(((Socket) closer).getInetAddress());
+            }
+            if(!resumed) mixer.addSource(source);
+            session.attach(address, closer);
+            mActiveSessions.add(session);
+            Log.i(TAG, "play audio ready to read from " + address + ", max frame " +
+                    options.getMaxFrameSize() + ", codec " + options.getCodec());
+            options.writeReply(outputStream);
             outputStream.flush();
-            mSocketOutputStream = outputStream;
-            DataInputStream stream = new DataInputStream(inputStream);
-            setWriting(false);
+            if(options.getTelemetryInterval() > 0) {
+                telemetry = new TelemetryReporter(outputStream, mixer, source, jitter,
+                        options, options.getTelemetryInterval());
+                mTelemetryReporters.add(telemetry);
+            }else {
+                mSocketOutputStreams.add(outputStream);
+            }
+            if(options.isDtx()) mDtxWriters.put(outputStream, newDtxWriter());
+            relayed = mRelayHub.attach(options);
+            if(udpReceiver != null) udpReceiver.start();
             while (true) {
                 try {
-                    stream.readFully(buffer, 0, 4);
-                    dataLength = parseInt(buffer);
-                    if(dataLength == 0) {
+                    reader.readHeader(header);
+                    dataLength = header.getLength();
+                    if(reader.getLost() != lost) {
+                        glitches.record(GlitchStats.LOST, reader.getLost() - lost);
+                        lost = reader.getLost();
+                    }
+                    if(header.isHeartbeat()) {
                         Log.i(TAG, "play audio heartbeat");
+                        reader.skip(dataLength);
                         continue;
                     }
-                    if(dataLength > buffer.length) {
-                        buffer = new byte[dataLength];
+                    if(header.isControl() && dataLength > 0 && dataLength <= MAX_CONTROL_PAYLOAD) {
+                        if(control == null) control = ByteBuffer.allocate(MAX_CONTROL_PAYLOAD);
+                        reader.readFrame(control, dataLength);
+                        byte command = control.get(0);
+                        if(command == 4) {
+                            Log.i(TAG, "play audio stopped in band");
+                            break;
+                        }
+                        processControlFrame(command, control.array(), 1, dataLength - 1, address);
+                        continue;
+                    }
+                    if(!header.isAudio() || udpReceiver != null) {
+                        reader.skip(dataLength);
+                        continue;
+                    }
+                    if(httpServer != null && httpServer.getAudioPlayer().isPlaying()) {
+                        reader.skip(dataLength);
+                        Log.w(TAG, "write audio playing");
+                        glitches.record(GlitchStats.PLAYER_DISCARD);
+                        continue;
+                    }
+                    long streamBytes = ringBuffer.getPublishedBytes();
+                    boolean relay = relayed && mRelayHub.hasSubscribers();
+                    if(decoder == null && !header.hasCrc() && !relay) {
+                        reader.readInto(ringBuffer, dataLength);
+                        pcmLength = dataLength;
+                    }else {
+                        if(encoded == null) encoded = ByteBuffer.allocateDirect(options.getMaxFrameSize());
+                        reader.readFrame(encoded, dataLength);
+                        if(!reader.verify(header, encoded)) {
+                            Log.w(TAG, "play audio crc mismatch, seq " + header.getSequence());
+                            glitches.record(GlitchStats.CORRUPT);
+                            continue;
+                        }
+                        if(relay) mRelayHub.forward(encoded);
+                        if(decoder == null) {
+                            ringBuffer.offer(encoded);
+                            pcmLength = dataLength;
+                        }else {
+                            try {
+                                pcmLength = decoder.decode(encoded, ringBuffer);
+                            } catch (IOException e) {
+                                Log.w(TAG, "play audio decode error, seq " + header.getSequence() + ": " + e);
+                                glitches.record(GlitchStats.DECODE_ERROR);
+                                continue;
+                            }
+                        }
+                    }
+                    if(header.hasPresentationTime()) {
+                        source.setPresentation(streamBytes, header.getPresentationTime());
+                    }
+                    if(header.hasCaptureTime()) {
+                        source.setProbe(streamBytes, header.getCaptureTime());
+                    }
+                    Metrics.PCM_FRAMES.increment();
+                    Metrics.PCM_BYTES.add(dataLength);
+                    if(options.isDtx() && mixer.isIdle()) jitter.restart();
+                    if(header.getTimestamp() == FrameHeader.NO_TIMESTAMP) {
+                        jitter.onFrame(System.nanoTime(), pcmLength);
+                    }else {
+                        jitter.onFrame(System.nanoTime(), pcmLength,
+                                header.getTimestamp() * 1_000_000_000L / options.getSampleRate());
                     }
-                    stream.readFully(buffer, 0, dataLength);
                 } catch (Exception e){
+                    Log.i(TAG, "play audio read end: " + e);
+                    park = session.getToken() != 0 && !stopped.get();
                     break;
                 }
-                if(getWriting()) {
-                    Log.w(TAG, "write audio busy");
-                    continue;
-                }
-
-                if(httpServer != null && httpServer.getAudioPlayer().isPlaying()) {
-                    Log.w(TAG, "write audio playing");
-                    continue;
+                mixer.signal();
+                if(firstAudioMillis < 0 && !resumed && source.getFirstPresentNanos() != 0) {
+                    firstAudioMillis = (source.getFirstPresentNanos() - options.getHandshakeNanos()) / 1_000_000;
+                    Log.i(TAG, "play audio first sample heard " + firstAudioMillis + "ms after handshake");
                 }
-                byte[] finalBuffer = buffer;
-                int finalDataLength = dataLength;
-                setWriting(true);
-                mExecutorService.execute(() -> {
-                    int code = mAudioTrack.write(finalBuffer, 0, finalDataLength);
-                    mAudioTrack.flush();
-                    mHandler.post(() -> setWriting(false));
-                    if(code < 0) {
-                        Log.e(TAG, "write audio data err: " + code);
-                    }
-                    int state = mAudioTrack.getPlayState();
-                    if(state != AudioTrack.PLAYSTATE_PLAYING) {
-                        Log.w(TAG, "write audio state: " + state);
-//                        mAudioTrack.play();
-                    }
-                });
+            }
+            if(udpReceiver != null) udpReceiver.stop();
+            if(!park) mixer.removeSource(source);
+            Log.i(TAG, "play audio jitter " + jitter.getJitterMicros() + "us, delay " +
+                    jitter.getDelayMicros() + "us, lost " + reader.getLost() + ", corrupt " +
+                    reader.getCorrupt() + ", sync " + source.getSyncErrorMicros() + "us, dropped " +
+                    ringBuffer.getDropped() + ", concealed " + source.getConcealed() +
+                    ", trimmed " + source.getTrimmed());
+            Log.i(TAG, "play audio glitches " + glitches);
+            LatencyHistogram latency = source.getLatency();
+            if(latency.getTotal() > 0) {
+                Log.i(TAG, "play audio latency p50 " + latency.getPercentileMicros(50) + "us, p99 " +
+                        latency.getPercentileMicros(99) + "us, max " + latency.getMaxMicros() + "us");
             }
         } catch (Exception e) {
             Log.e(TAG, "play audio error: " + e);
         } finally {
-            PlayerVisualizer.stopBase();
+            if(udpReceiver != null) udpReceiver.stop();
+            if(relayed) mRelayHub.detach();
+            if(multicastLocked) mMulticastLock.release();
             try {
-                inputStream.close();
+                readChannel.close();
             } catch (Exception e) {
                 Log.e(TAG, "stop stream error: " + e);
             }
@@ -499,39 +1049,280 @@ public class TcpService extends NotificationService {
             } catch (Exception e) {
                 Log.e(TAG, "close audio socket error: " + e);
             }
+            mSocketOutputStreams.remove(outputStream);
+            ThreadPoolExecutor dtxWriter = mDtxWriters.remove(outputStream);
+            if(dtxWriter != null) dtxWriter.shutdownNow();
+            if(session != null) mActiveSessions.remove(session);
+            if(telemetry != null) mTelemetryReporters.remove(telemetry);
+            stopSocketOutputStream(outputStream);
+            synchronized (mMixerLock) {
+                mPlayerClosers.remove(address);
+                if(park) {
+                    parkSession(session);
+                }else {
+                    if(session != null && session.getToken() != 0) mSessions.remove(session.getToken());
+                    if(mixer != null && source != null) mixer.removeSource(source);
+                }
+                if(mPlayerClosers.isEmpty() && getParkedCount() == 0) closeMixer();
+            }
         }
-        stopAudio();
-        stopSocketOutputStream();
-        stopForeground(true);
-        mWakeLockManager.releaseWakeLock();
-        setPlaying(false);
         if(mListener != null){
             mListener.onMessage();
         }
-        Log.i(TAG, "play audio ended");
+        Log.i(TAG, "play audio ended: " + address);
+    }
+
+    private int getResumeGraceMillis() {
+        return mSharedPreferences.getInt("resume-grace-ms", RESUME_GRACE_MILLIS);
+    }
+
+    private int getParkedCount() {
+        int count = 0;
+        for (StreamSession session : mSessions.values()) {
+            if(session.isParked()) count++;
+        }
+        return count;
+    }
+
+    /**
+     * A sender often reconnects before the dead connection timed out on this side, close that
+     * one so its session gets parked and can be resumed, waiting like a stop command does.
+     */
+    private void takeOverSession(int token) {
+        Closeable connection;
+        synchronized (mMixerLock) {
+            StreamSession session = mSessions.get(token);
+            connection = session == null ? null : session.getConnection();
+        }
+        if(connection == null) return;
+        try {
+            connection.close();
+        } catch (IOException ignored) {
+        }
+        for (int i = 0; i < 10; i++) {
+            synchronized (mMixerLock) {
+                StreamSession session = mSessions.get(token);
+                if(session == null || session.isParked()) return;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Returns the parked session the sender asked to resume, or drops it when the new stream
+     * does not match it. Called with the mixer lock held.
+     */
+    private StreamSession resumeSession(StreamOptions options) {
+        StreamSession session = mSessions.get(options.getResumeToken());
+        if(session == null || !session.isParked()) return null;
+        if(session.isCompatible(options)) {
+            Log.i(TAG, "resume session " + session.getToken() + " after " + session.getParkedMillis() + "ms");
+            session.attach(session.getAddress(), null);
+            return session;
+        }
+        Log.i(TAG, "drop parked session " + session.getToken() + ", format changed");
+        mSessions.remove(session.getToken());
+        if(mMixer != null) mMixer.removeSource(session.getSource());
+        return null;
+    }
+
+    /** Keeps the stream warm for the grace period, the source stays in the mixer meanwhile. */
+    private void parkSession(StreamSession session) {
+        int graceMillis = getResumeGraceMillis();
+        session.park();
+        Log.i(TAG, "park session " + session.getToken() + " from " + session.getAddress());
+        try {
+            mSessionScheduler.schedule(() -> {
+                synchronized (mMixerLock) {
+                    if(mSessions.get(session.getToken()) != session || session.getParkedMillis() < graceMillis) return;
+                    mSessions.remove(session.getToken());
+                    Log.i(TAG, "parked session " + session.getToken() + " expired");
+                    if(mMixer != null) mMixer.removeSource(session.getSource());
+                    if(mPlayerClosers.isEmpty() && getParkedCount() == 0) closeMixer();
+                }
+            }, graceMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    /** Ends the parked sessions of a sender at once, used when it stops explicitly. */
+    private void expireSessions(String address) {
+        synchronized (mMixerLock) {
+            Iterator<StreamSession> iterator = mSessions.values().iterator();
+            while (iterator.hasNext()) {
+                StreamSession session = iterator.next();
+                if(!session.isParked() || !session.getAddress().equals(address)) continue;
+                iterator.remove();
+                if(mMixer != null) mMixer.removeSource(session.getSource());
+            }
+            if(mPlayerClosers.isEmpty() && getParkedCount() == 0) closeMixer();
+        }
+    }
+
+    /** Preference the track buffer size is remembered under, per sender and local network address. */
+    private String getBufferKey(Closeable socket, String address) {
+        String network = LOCAL_ADDRESS;
+        if(socket instanceof Socket && ((Socket)socket).getLocalAddress() != null) {
+            network = ((Socket)socket).getLocalAddress().getHostAddress();
+        }
+        return "track-buffer-" + network + "-" + address;
+    }
+
+    private int getOutputBurstFrames(int defaultFrames) {
+        AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+        String frames = audioManager == null ? null :
+                audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER);
+        try {
+            return frames == null ? defaultFrames : Integer.parseInt(frames);
+        } catch (NumberFormatException e) {
+            return defaultFrames;
+        }
+    }
+
+    /**
+     * Creates the shared output on the first stream, later streams are mixed into it.
+     * The track runs at the device native rate so the platform mixer does not resample
+     * again, and uses float when the stream carries more than 16 bits. From Android N the
+     * track gets headroom above the minimum buffer and a {@link TrackBufferController}
+     * decides how much of it is used.
+     */
+    private PcmWriter openMixer(StreamOptions options, String bufferKey){
+        if(mMixer != null) return mMixer;
+        setPlaying(true);
+        mHandler.post(this::initNotification);
+        mWakeLockManager.acquireWakeLock();
+        int sampleRate = AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+        if(sampleRate <= 0) sampleRate = options.getSampleRate();
+        int encoding = options.isHighResolution() ? AudioFormat.ENCODING_PCM_FLOAT : AudioFormat.ENCODING_PCM_16BIT;
+        int bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRate, options.getChannelMask(), encoding);
+        if(bufferSizeInBytes <= 0 && encoding != AudioFormat.ENCODING_PCM_16BIT) {
+            encoding = AudioFormat.ENCODING_PCM_16BIT;
+            bufferSizeInBytes = AudioTrack.getMinBufferSize(sampleRate, options.getChannelMask(), encoding);
+        }
+        Log.i(TAG, "open mixer " + sampleRate + "Hz, encoding " + encoding + ", stream " + options.getSampleRate() +
+                "Hz, format " + options.getSampleFormat());
+        if(httpServer != null) httpServer.getAudioPlayer().pause();
+        boolean adaptive = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N;
+        int capacityInBytes = adaptive ? bufferSizeInBytes * TRACK_BUFFER_HEADROOM : bufferSizeInBytes;
+        AudioTrackPool.Format format = new AudioTrackPool.Format(sampleRate, options.getChannelMask(),
+                encoding, capacityInBytes);
+        mAudioTrack = mTrackPool.acquire(format);
+        putTrackFormat(format);
+        setVolume(0);
+        mMixer = new PcmWriter(mAudioTrack, sampleRate,
+                options.getChannelCount(), encoding, bufferSizeInBytes);
+        if(adaptive) {
+            int frameBytes = options.getChannelCount() * PcmWriter.getBytesPerSample(encoding);
+            mBufferKey = bufferKey;
+            mBufferController = new TrackBufferController(mAudioTrack, sampleRate,
+                    getOutputBurstFrames(mMixer.getPeriodFrames()), mMixer.getPeriodFrames(),
+                    capacityInBytes / frameBytes, mSharedPreferences.getInt(bufferKey, 0));
+            mMixer.setBufferController(mBufferController);
+            Log.i(TAG, "track buffer " + mBufferController.getBufferFrames() + " frames of " +
+                    capacityInBytes / frameBytes);
+        }
+        mMixer.setIdle(getSilenceIdleMillis(), this::onMixerIdle);
+        mAudioTrack.play();
+        mMixer.start();
+        int sessionId = mAudioTrack.getAudioSessionId();
+        mHandler.post(() -> PlayerVisualizer.startBase(sessionId));
+        return mMixer;
+    }
+
+    /** Output formats of the last mixers, most recent first, prewarmed after boot. */
+    private List<AudioTrackPool.Format> getTrackFormats() {
+        List<AudioTrackPool.Format> formats = new ArrayList<>();
+        for (String text : mSharedPreferences.getString("track-formats", "").split(",")) {
+            AudioTrackPool.Format format = AudioTrackPool.Format.parse(text);
+            if(format != null) formats.add(format);
+        }
+        return formats;
+    }
+
+    private void putTrackFormat(AudioTrackPool.Format format) {
+        List<AudioTrackPool.Format> formats = getTrackFormats();
+        formats.remove(format);
+        formats.add(0, format);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < Math.min(TRACK_POOL_SIZE, formats.size()); i++) {
+            if(i > 0) text.append(',');
+            text.append(formats.get(i));
+        }
+        mSharedPreferences.edit().putString("track-formats", text.toString()).apply();
+    }
+
+    private int getSilenceIdleMillis() {
+        return mSharedPreferences.getInt("silence-idle-ms", SILENCE_IDLE_MILLIS);
+    }
+
+    /** Runs on the mixer thread, the track was paused on silence or resumed. */
+    private void onMixerIdle(boolean idle) {
+        if(idle) {
+            mWakeLockManager.releaseWakeLock();
+        }else {
+            mWakeLockManager.acquireWakeLock();
+        }
+        for (Map.Entry<OutputStream, ThreadPoolExecutor> writer : mDtxWriters.entrySet()) {
+            OutputStream outputStream = writer.getKey();
+            writer.getValue().execute(() -> {
+                try {
+                    TelemetryReporter.writeDtx(outputStream, idle);
+                } catch (IOException e) {
+                    Log.e(TAG, "send dtx error: " + e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Writer of the DTX frames of one stream, so a sender that stopped reading only delays its own
+     * frames. A single frame waits while one is written, a newer state replaces it.
+     */
+    private static ThreadPoolExecutor newDtxWriter() {
+        return new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    private void closeMixer(){
+        if(mMixer != null) {
+            if(!mMixer.stop()) {
+                Log.w(TAG, "mixer did not stop, drop its track");
+                mAudioTrack = null;
+            }
+            mMixer = null;
+        }
+        if(mBufferController != null) {
+            mSharedPreferences.edit().putInt(mBufferKey, mBufferController.getBufferFrames()).apply();
+            mBufferController = null;
+        }
+        mHandler.post(() -> {
+            PlayerVisualizer.stopBase();
+            stopForeground(true);
+        });
+        stopAudio();
+        mWakeLockManager.releaseWakeLock();
+        setPlaying(false);
     }
 
     private void stopAudio(){
         try {
             if(mAudioTrack != null) {
-                mAudioTrack.pause();
-                mAudioTrack.stop();
-                mAudioTrack.flush();
-                mAudioTrack.release();
+                AudioTrack audioTrack = mAudioTrack;
                 mAudioTrack = null;
+                mTrackPool.recycle(audioTrack);
             }
         } catch (Exception e) {
             Log.e(TAG, "stop audio error: " + e);
         }
     }
 
-    private void stopSocketOutputStream(){
+    private void stopSocketOutputStream(OutputStream outputStream){
         try {
-            if(mSocketOutputStream != null) {
-                mSocketOutputStream.flush();
-                mSocketOutputStream.close();
-                mSocketOutputStream = null;
-            }
+            outputStream.flush();
+            outputStream.close();
         } catch (Exception e) {
             Log.e(TAG, "stop output stream error: " + e);
         }
@@ -571,30 +1362,24 @@ public class TcpService extends NotificationService {
             startForeground(NOTIFICATION_ID, mNotification);
         }
     }
-    private synchronized void setWriting(boolean writing) {
-        isWriting = writing;
-    }
-
-    public synchronized boolean getWriting() {
-        return isWriting;
-    }
-
     private void startBroadcastTimer(){
         Timer timer = new Timer();
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
                 if (getPlaying()) {
-                    try {
-                        if(mSocketOutputStream != null) {
-                            mSocketOutputStream.write(new byte[1]);
-                            Log.i(TAG, "send heartbeat");
-                            if(lastPCVolume > 0 && mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC) == 0){
-                                setVolume(lastPCVolume);
+                    for (OutputStream outputStream : mSocketOutputStreams) {
+                        try {
+                            synchronized (outputStream) {
+                                outputStream.write(new byte[1]);
                             }
+                            Log.i(TAG, "send heartbeat");
+                        } catch (IOException e) {
+                            Log.e(TAG, "send heartbeat err: " + e);
                         }
-                    } catch (IOException e) {
-                        Log.e(TAG, "send heartbeat err: " + e);
+                    }
+                    if(lastPCVolume > 0 && mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC) == 0){
+                        setVolume(lastPCVolume);
                     }
                     return;
                 }
@@ -614,6 +1399,74 @@ public class TcpService extends NotificationService {
         }, 0, 1000L * 10);
     }
 
+    /** Subscribes to the relay configured as upstream and plays what it forwards, reconnecting when it ends. */
+    private void startRelayClient(){
+        String upstream = mSharedPreferences.getString("relay-upstream", "");
+        int separator = upstream.lastIndexOf(':');
+        if(separator <= 0) return;
+        String host = upstream.substring(0, separator);
+        int port;
+        try {
+            port = Integer.parseInt(upstream.substring(separator + 1));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid relay upstream: " + upstream);
+            return;
+        }
+        mRelayClientRunning = true;
+        new Thread(() -> {
+            while (mRelayClientRunning) {
+                Socket socket = null;
+                try {
+                    socket = SocketChannel.open(new InetSocketAddress(host, port)).socket();
+                    socket.setTcpNoDelay(true);
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(HEAD.getBytes());
+                    outputStream.write(COMMAND_RELAY);
+                    outputStream.flush();
+                    Log.i(TAG, "relay subscribed to " + upstream);
+                    processSocketClient(socket, socket.getInputStream(), outputStream,
+                            socket.getInetAddress().getHostAddress(), false);
+                } catch (Exception e) {
+                    Log.e(TAG, "relay upstream error: " + e);
+                }
+                if(socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                try {
+                    Thread.sleep(RELAY_RETRY_MILLIS);
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }).start();
+    }
+
+    private void startTelemetryTimer(){
+        Timer timer = new Timer();
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                for (TelemetryReporter reporter : mTelemetryReporters) {
+                    try {
+                        reporter.reportIfDue(now);
+                    } catch (IOException e) {
+                        mTelemetryReporters.remove(reporter);
+                        Log.e(TAG, "send telemetry err: " + e);
+                    }
+                }
+            }
+        }, 0, TelemetryReporter.MIN_INTERVAL_MILLIS);
+    }
+
+    private void putLong(byte[] data, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            data[offset + i] = (byte) (value >> (i * 8));
+        }
+    }
+
     private int parseInt(@NonNull byte[] data) {
         return (data[0] & 0xFF) |
                 ((data[1] & 0xFF) << 8) |
@@ -23,8 +23,9 @@ public class WakeLockManager {
     }
 
     @SuppressLint("WakelockTimeout")
-    public void acquireWakeLock() {
+    public synchronized void acquireWakeLock() {
         if(!hasWakeLockPermission()) return;
+        if(wakeLock != null && wakeLock.isHeld()) return;
         PowerManager powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
         wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TcpService.class.getName());
         if (null != wakeLock)  {
@@ -33,7 +34,7 @@ public class WakeLockManager {
         }
     }
 
-    public void releaseWakeLock() {
+    public synchronized void releaseWakeLock() {
         if (wakeLock != null && wakeLock.isHeld()) {
             wakeLock.release();
             wakeLock = null;
@@ -0,0 +1,52 @@
+package com.picapico.audioshare.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Monotonic counter split over padded cells picked by thread id, so the audio, network and
+ * writer threads adding to it do not fight over one cache line. Reads sum the cells.
+ */
+public class Counter extends Metric {
+    private static final int STRIPES = 8;
+    private static final int PADDING = 8;
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    public Counter(String name, String help) {
+        super(name, help);
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        cells.getAndAdd(stripe() * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    static int stripe() {
+        return (int) (Thread.currentThread().getId() & (STRIPES - 1));
+    }
+
+    @Override
+    public String getType() {
+        return "counter";
+    }
+
+    @Override
+    public Object toJson() {
+        return get();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+}
@@ -0,0 +1,34 @@
+package com.picapico.audioshare.metrics;
+
+/** Value read from its owner at export time. */
+public class Gauge extends Metric {
+    private final Source source;
+
+    public interface Source {
+        long get();
+    }
+
+    public Gauge(String name, String help, Source source) {
+        super(name, help);
+        this.source = source;
+    }
+
+    public long get() {
+        return source.get();
+    }
+
+    @Override
+    public String getType() {
+        return "gauge";
+    }
+
+    @Override
+    public Object toJson() {
+        return get();
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        out.append(getName()).append(' ').append(get()).append('\n');
+    }
+}
@@ -0,0 +1,103 @@
+package com.picapico.audioshare.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution over fixed upper bounds, one atomic count per bucket plus an overflow bucket and
+ * a striped sum, so recording is a binary search and two atomic adds. Counts are cumulative only
+ * when exported, as Prometheus expects.
+ */
+public class Histogram extends Metric {
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final Counter sum;
+
+    /** @param bounds inclusive upper bounds in ascending order */
+    public Histogram(String name, String help, long... bounds) {
+        super(name, help);
+        this.bounds = bounds.clone();
+        counts = new AtomicLongArray(bounds.length + 1);
+        sum = new Counter(name + "_sum", help);
+    }
+
+    public void record(long value) {
+        int i = Arrays.binarySearch(bounds, value);
+        counts.incrementAndGet(i < 0 ? -i - 1 : i);
+        sum.add(value);
+    }
+
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * Upper bound of the bucket holding the percentile over histograms sharing the same bounds,
+     * {@link Long#MAX_VALUE} when it falls in the overflow bucket, -1 without samples.
+     */
+    public static long getPercentile(double percentile, Histogram... histograms) {
+        long count = 0;
+        for (Histogram histogram : histograms) {
+            count += histogram.getCount();
+        }
+        if(count == 0) return -1;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long[] bounds = histograms[0].bounds;
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            for (Histogram histogram : histograms) {
+                seen += histogram.counts.get(i);
+            }
+            if(seen >= rank) return bounds[i];
+        }
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String getType() {
+        return "histogram";
+    }
+
+    @Override
+    public Object toJson() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        List<Map<String, Object>> buckets = new ArrayList<>();
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += counts.get(i);
+            Map<String, Object> bucket = new LinkedHashMap<>();
+            bucket.put("le", i < bounds.length ? (Object) bounds[i] : "+Inf");
+            bucket.put("count", cumulative);
+            buckets.add(bucket);
+        }
+        value.put("count", cumulative);
+        value.put("sum", getSum());
+        value.put("buckets", buckets);
+        return value;
+    }
+
+    @Override
+    public void writePrometheus(StringBuilder out) {
+        long cumulative = 0;
+        for (int i = 0; i <= bounds.length; i++) {
+            cumulative += counts.get(i);
+            out.append(getName()).append("_bucket{le=\"")
+                    .append(i < bounds.length ? String.valueOf(bounds[i]) : "+Inf")
+                    .append("\"} ").append(cumulative).append('\n');
+        }
+        out.append(getName()).append("_sum ").append(getSum()).append('\n');
+        out.append(getName()).append("_count ").append(cumulative).append('\n');
+    }
+}
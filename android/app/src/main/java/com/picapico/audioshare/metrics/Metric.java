@@ -0,0 +1,29 @@
+package com.picapico.audioshare.metrics;
+
+/** Named value in the {@link MetricsRegistry}, exported as JSON and in the Prometheus text format. */
+public abstract class Metric {
+    private final String name;
+    private final String help;
+
+    protected Metric(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+
+    /** Prometheus type, counter, gauge or histogram. */
+    public abstract String getType();
+
+    /** Value for the JSON export, a number or a map. */
+    public abstract Object toJson();
+
+    /** Sample lines without the HELP and TYPE comments. */
+    public abstract void writePrometheus(StringBuilder out);
+}
@@ -0,0 +1,35 @@
+package com.picapico.audioshare.metrics;
+
+/** Well-known metrics of the audio pipeline and the music server, all in {@link #REGISTRY}. */
+public final class Metrics {
+    public static final MetricsRegistry REGISTRY = new MetricsRegistry();
+
+    public static final Counter PCM_BYTES = REGISTRY.counter("audioshare_pcm_received_bytes_total",
+            "Audio payload bytes received over TCP and UDP");
+    public static final Counter PCM_FRAMES = REGISTRY.counter("audioshare_pcm_received_frames_total",
+            "Audio frames received over TCP and UDP");
+    public static final Counter PCM_DROPS = REGISTRY.counter("audioshare_pcm_dropped_chunks_total",
+            "Chunks dropped because a receive ring was full");
+    public static final Counter PCM_CONCEALED = REGISTRY.counter("audioshare_pcm_concealed_periods_total",
+            "Mixer periods concealed because a stream ran dry");
+    public static final Counter TRACK_UNDERRUNS = REGISTRY.counter("audioshare_track_underruns_total",
+            "Output track underruns");
+    public static final Histogram PCM_JITTER = REGISTRY.histogram("audioshare_pcm_interarrival_jitter_microseconds",
+            "Deviation of frame arrival from the expected interval",
+            250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000, 250000);
+    public static final Counter WS_MESSAGES = REGISTRY.counter("audioshare_websocket_messages_total",
+            "Messages sent to WebSocket clients");
+    public static final Histogram PROXY_LATENCY = REGISTRY.histogram("audioshare_proxy_duration_milliseconds",
+            "Time to complete a proxied request",
+            10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000);
+    public static final Histogram PROXY_HEADERS_LATENCY = REGISTRY.histogram("audioshare_proxy_headers_milliseconds",
+            "Time until the upstream headers of a streamed proxy request arrived",
+            10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000);
+    public static final Counter PROXY_ERRORS = REGISTRY.counter("audioshare_proxy_errors_total",
+            "Proxied requests that failed after the retry");
+    public static final Counter PLAYER_REBUFFERS = REGISTRY.counter("audioshare_player_rebuffers_total",
+            "Times the media player stalled to buffer during playback");
+
+    private Metrics() {
+    }
+}
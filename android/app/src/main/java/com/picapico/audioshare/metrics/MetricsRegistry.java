@@ -0,0 +1,53 @@
+package com.picapico.audioshare.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Set of metrics exported together. Registration is rare and copies the list, exports walk it
+ * without locking; a metric registered again under the same name replaces the old one, so an
+ * owner that is recreated, like the HTTP server, can register its gauges again.
+ */
+public class MetricsRegistry {
+    private final CopyOnWriteArrayList<Metric> mMetrics = new CopyOnWriteArrayList<>();
+
+    public Counter counter(String name, String help) {
+        return register(new Counter(name, help));
+    }
+
+    public Gauge gauge(String name, String help, Gauge.Source source) {
+        return register(new Gauge(name, help, source));
+    }
+
+    public Histogram histogram(String name, String help, long... bounds) {
+        return register(new Histogram(name, help, bounds));
+    }
+
+    public synchronized <T extends Metric> T register(T metric) {
+        for (Metric registered : mMetrics) {
+            if(registered.getName().equals(metric.getName())) mMetrics.remove(registered);
+        }
+        mMetrics.add(metric);
+        return metric;
+    }
+
+    public Map<String, Object> toJson() {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (Metric metric : mMetrics) {
+            result.put(metric.getName(), metric.toJson());
+        }
+        return result;
+    }
+
+    /** Text exposition format 0.0.4. */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : mMetrics) {
+            out.append("# HELP ").append(metric.getName()).append(' ').append(metric.getHelp()).append('\n');
+            out.append("# TYPE ").append(metric.getName()).append(' ').append(metric.getType()).append('\n');
+            metric.writePrometheus(out);
+        }
+        return out.toString();
+    }
+}
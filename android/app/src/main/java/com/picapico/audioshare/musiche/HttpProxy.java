@@ -1,6 +1,7 @@
 package com.picapico.audioshare.musiche;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.koushikdutta.async.ByteBufferList;
@@ -8,6 +9,7 @@ import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpRequest;
 import com.koushikdutta.async.http.AsyncHttpResponse;
 import com.koushikdutta.async.http.body.StringBody;
+import com.picapico.audioshare.metrics.Metrics;
 
 public class HttpProxy {
     private static final String TAG = "AudioShareHttpProxy";
@@ -16,6 +18,10 @@ public class HttpProxy {
     public interface OnCompletedListener {
         void onCompleted(AsyncHttpResponse source, ByteBufferList result);
     }
+    public interface OnResponseListener {
+        /** Called once the upstream headers arrived, before the body is read; null when the request failed. */
+        void onResponse(AsyncHttpResponse source);
+    }
     public static void handle(String url, OnCompletedListener listener){
         ProxyRequestData proxyRequestData = new ProxyRequestData();
         proxyRequestData.setUrl(url);
@@ -47,6 +53,7 @@ public class HttpProxy {
     }
     public static void handle(ProxyRequestData requestData, OnCompletedListener listener, boolean retry){
         AsyncHttpRequest request = getRequest(requestData);
+        long start = SystemClock.elapsedRealtime();
         AsyncHttpClient.getDefaultInstance().executeByteBufferList(request, new AsyncHttpClient.DownloadCallback() {
             @Override
             public void onCompleted(Exception e, AsyncHttpResponse source, ByteBufferList result) {
@@ -55,10 +62,31 @@ public class HttpProxy {
                 }else {
                     if(e != null){
                         Log.e(TAG, requestData.getMethod().toLowerCase() + " proxy send error", e);
+                        Metrics.PROXY_ERRORS.increment();
                     }
+                    Metrics.PROXY_LATENCY.record(SystemClock.elapsedRealtime() - start);
                     listener.onCompleted(source, result);
                 }
             }
         });
     }
+    public static void stream(ProxyRequestData requestData, OnResponseListener listener){
+        stream(requestData, listener, true);
+    }
+    private static void stream(ProxyRequestData requestData, OnResponseListener listener, boolean retry){
+        AsyncHttpRequest request = getRequest(requestData);
+        long start = SystemClock.elapsedRealtime();
+        AsyncHttpClient.getDefaultInstance().execute(request, (e, source) -> {
+            if(e != null && retry){
+                stream(requestData, listener, false);
+                return;
+            }
+            if(e != null){
+                Log.e(TAG, requestData.getMethod().toLowerCase() + " proxy stream error", e);
+                Metrics.PROXY_ERRORS.increment();
+            }
+            Metrics.PROXY_HEADERS_LATENCY.record(SystemClock.elapsedRealtime() - start);
+            listener.onResponse(e == null ? source : null);
+        });
+    }
 }
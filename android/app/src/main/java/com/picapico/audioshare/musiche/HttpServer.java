@@ -7,10 +7,12 @@ import android.content.SharedPreferences;
 import android.content.res.AssetManager;
 import android.media.AudioManager;
 import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.koushikdutta.async.AsyncNetworkSocket;
 import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.Util;
 import com.koushikdutta.async.http.AsyncHttpClient;
 import com.koushikdutta.async.http.AsyncHttpResponse;
 import com.koushikdutta.async.http.Headers;
@@ -21,13 +23,13 @@ import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
 import com.koushikdutta.async.http.server.HttpServerRequestCallback;
 import com.phicomm.speaker.player.light.PlayerVisualizer;
 import com.picapico.audioshare.BuildConfig;
+import com.picapico.audioshare.metrics.Metrics;
 import com.picapico.audioshare.musiche.player.AudioPlayer;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.File;
-import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -50,10 +52,27 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
     BroadcastReceiver mBroadcastReceiver;
     SharedPreferences mPreferences;
     AssetManager mAssetManager;
+    StaticAssets mStaticAssets;
+    ProxyCache mProxyCache;
     Context mContext;
+    StreamStatsProvider mStreamStatsProvider;
+
+    public interface StreamStatsProvider {
+        /** One entry per playing PCM stream. */
+        List<Map<String, Object>> getLatencyStats();
+    }
+
+    ChannelListener mChannelListener;
+
+    public interface ChannelListener {
+        /** The player channel changed, PCM streams follow the same setting. */
+        void onChannelChanged(@AudioPlayer.ChannelType int channel);
+    }
+
     public HttpServer(Context context, int port) {
         mServerPort = port;
         mContext = context;
+        mProxyCache = new ProxyCache(new File(context.getCacheDir(), "proxy"));
         mAudioPlayer = new AudioPlayer(context);
         initDeviceName();
     }
@@ -67,6 +86,7 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
     private void setChannel(@AudioPlayer.ChannelType int channel){
         mAudioPlayer.setChannel(channel);
         mPreferences.edit().putInt("channel", channel).apply();
+        if(mChannelListener != null) mChannelListener.onChannelChanged(channel);
     }
 
     private void initBroadcastReceiver(){
@@ -111,6 +131,7 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
         return this;
     }
     public void stop(){
+        mProxyCache.close();
         if(mServer == null) return;
         try {
             mServer.stop();
@@ -144,6 +165,16 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
 
     public void setAssetManager(AssetManager assetManager){
         this.mAssetManager = assetManager;
+        this.mStaticAssets = new StaticAssets(assetManager);
+        this.mStaticAssets.indexAsync();
+    }
+
+    public void setStreamStatsProvider(StreamStatsProvider provider){
+        this.mStreamStatsProvider = provider;
+    }
+
+    public void setChannelListener(ChannelListener listener){
+        this.mChannelListener = listener;
     }
     //endregion
 
@@ -277,6 +308,11 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
 
     //region Handler
     private void initHandler(){
+        Metrics.REGISTRY.gauge("audioshare_websocket_clients", "Connected WebSocket clients", () -> {
+            synchronized (mWebClientsLock){
+                return mWebClients.size() + mRemoteClients.size();
+            }
+        });
         mServer.websocket("/ws", websocketHandler);
         mServer.websocket("/sws", serverWebsocketHandler);
         mServer.get("/version", getVersion);
@@ -320,6 +356,8 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
         mServer.post("/proxy", proxyPost);
         mServer.get("/proxy", proxyGet);
         mServer.get("/remote/clients", getRemoteClients);
+        mServer.get("/latency", getLatency);
+        mServer.get("/metrics", getMetrics);
         mServer.post("/remote/client", updateRemoteClient);
         mServer.get(".*", getStatic);
     }
@@ -335,67 +373,15 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
     private final HttpServerRequestCallback empty = (request, response) -> response.send("");
     private final HttpServerRequestCallback getVersion = (request, response) -> response.send("v"+mVersionName);
     private final HttpServerRequestCallback getStatic = (request, response) -> {
-        if(mAssetManager == null){
+        if(mStaticAssets == null || !mStaticAssets.send(request, response)){
             response.code(404);
             response.end();
-            return;
-        }
-        InputStream inputStream = null;
-        try {
-            mAssetManager.list("index.html");
-            String urlPath = request.getPath().substring(1);
-            inputStream = mAssetManager.open(urlPath);
-        } catch (Exception ignore) {
-        }
-        if(inputStream == null){
-            try {
-                inputStream = mAssetManager.open("index.html");
-            } catch (Exception ignore) {
-            }
-        }
-        if(inputStream != null){
-            try {
-                byte[] buffer = new byte[inputStream.available()];
-                int ignore = inputStream.read(buffer);
-                response.send(getMimeType(request.getPath()), buffer);
-                return;
-            } catch (Exception ignore) {
-            }
         }
-        response.code(404);
-        response.end();
     };
     public String getMimeType(String filePath)
     {
-        String extension = "";
-        if(filePath != null){
-            String[] paths = filePath.split("\\.");
-            if(paths.length > 0) extension = paths[paths.length - 1];
-        }
-        switch (extension)
-        {
-            case "html":
-                return "text/html";
-            case "js":
-                return "application/javascript; charset=utf-8";
-            case "css":
-                return "text/css; charset=utf-8";
-            case "woff2":
-                return "font/woff2";
-            case "woff":
-                return "font/woff";
-            case "png":
-                return "image/png";
-            case "jpg":
-                return "image/jpg";
-            case "svg":
-                return "image/svg+xml";
-            case "webp":
-                return "image/webp";
-            case "webm":
-                return "video/webm";
-        }
-        return "text/html";
+        if(mStaticAssets == null) return "text/html";
+        return mStaticAssets.getMimeType(filePath);
     }
     private final HttpServerRequestCallback config = (request, response) -> {
         Map<String, Boolean> data = new HashMap<>();
@@ -559,6 +545,20 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
             response.send("application/json", "{\"data\":false}");
         }
     };
+    private final HttpServerRequestCallback getLatency = (request, response) -> {
+        if(mStreamStatsProvider == null){
+            response.send(new JSONArray());
+            return;
+        }
+        response.send(new JSONArray(mStreamStatsProvider.getLatencyStats()));
+    };
+    private final HttpServerRequestCallback getMetrics = (request, response) -> {
+        if("json".equals(request.getQuery().getString("format"))){
+            response.send(new JSONObject(Metrics.REGISTRY.toJson()));
+        }else {
+            response.send("text/plain; version=0.0.4", Metrics.REGISTRY.toPrometheus());
+        }
+    };
     private final HttpServerRequestCallback getRemoteClients = (request, response) -> {
         List<Map<String, Object>> clients = new ArrayList<>();
         AsyncNetworkSocket socket = (AsyncNetworkSocket) request.getSocket();
@@ -637,8 +637,15 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
             response.end();
             return;
         }
+        ProxyRequestData proxyRequestData = new ProxyRequestData();
+        proxyRequestData.setUrl(url);
+        for (String key: new String[]{"Range", "If-Range"}) {
+            String value = request.getHeaders().get(key);
+            if(value != null) proxyRequestData.getHeaders().put(key, value);
+        }
         try {
-            HttpProxy.handle(url, (source, result) -> responseProxyData(response, source, result));
+            long start = SystemClock.elapsedRealtime();
+            HttpProxy.stream(proxyRequestData, source -> streamProxyData(response, source, start));
         }catch (Exception e){
             Log.e(TAG, "send proxy get error", e);
             response.end();
@@ -653,13 +660,78 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
             response.send("");
             return;
         }
-        try {
-            HttpProxy.handle(proxyRequestData, (source, result) -> responseProxyData(response, source, result));
-        }catch (Exception e){
-            Log.e(TAG, "http proxy post error", e);
+        mProxyCache.get(proxyRequestData, (entry, tier) -> {
+            if(entry != null){
+                response.getHeaders().set("X-Proxy-Cache", tier);
+                responseProxyEntry(response, entry);
+                return;
+            }
+            try {
+                HttpProxy.handle(proxyRequestData, (source, result) -> {
+                    long ttl = source == null || result == null ? 0 : mProxyCache.getTtlMillis(proxyRequestData,
+                            source.code(), source.headers(), mPreferences == null ? null :
+                                    mPreferences.getString("musiche-proxy-cache-rules", null));
+                    if(ttl <= 0){
+                        responseProxyData(response, source, result);
+                        return;
+                    }
+                    String contentType = source.headers().get("Content-Type");
+                    ProxyCache.Entry fetched = new ProxyCache.Entry(source.code(),
+                            contentType == null || contentType.isEmpty() ? "text/plain;charset=UTF-8" : contentType,
+                            parseHeader(source.headers()), result.getAllByteArray(), System.currentTimeMillis() + ttl);
+                    mProxyCache.put(proxyRequestData, source.headers(), fetched);
+                    response.getHeaders().set("X-Proxy-Cache", "miss");
+                    responseProxyEntry(response, fetched);
+                });
+            }catch (Exception e){
+                Log.e(TAG, "http proxy post error", e);
+                response.end();
+            }
+        });
+    };
+
+    private void responseProxyEntry(AsyncHttpServerResponse response, ProxyCache.Entry entry){
+        response.code(entry.code);
+        setHeader(response, entry.headers);
+        response.send(entry.contentType, entry.body);
+    }
+
+    /**
+     * Pipes the upstream body to the client as it arrives, pausing upstream while the client
+     * socket is backed up. Range requests and 206 answers pass through; the length is kept
+     * unless the client decoded a compressed body, then the answer is chunked instead.
+     */
+    private void streamProxyData(AsyncHttpServerResponse response, AsyncHttpResponse responseProxy, long start){
+        if(responseProxy == null) {
+            Metrics.PROXY_LATENCY.record(SystemClock.elapsedRealtime() - start);
             response.end();
+            return;
         }
-    };
+        Headers upstreamHeaders = responseProxy.headers();
+        if(responseProxy.code() > 300 && responseProxy.code() < 310){
+            responseProxy.close();
+            Metrics.PROXY_LATENCY.record(SystemClock.elapsedRealtime() - start);
+            response.code(200);
+            response.setContentType("application/json");
+            response.send(new JSONObject(parseHeader(upstreamHeaders)));
+            return;
+        }
+        response.code(responseProxy.code());
+        setHeader(response, parseHeader(upstreamHeaders));
+        String contentType = upstreamHeaders.get("Content-Type");
+        response.setContentType(contentType == null || contentType.isEmpty() ? "text/plain;charset=UTF-8" : contentType);
+        String contentLength = upstreamHeaders.get("Content-Length");
+        String contentEncoding = upstreamHeaders.get("Content-Encoding");
+        if(contentLength != null && (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity"))){
+            response.getHeaders().set("Content-Length", contentLength);
+        }
+        response.setClosedCallback(e -> responseProxy.close());
+        Util.pump(responseProxy, response, e -> {
+            if(e != null) Log.e(TAG, "stream proxy data error", e);
+            Metrics.PROXY_LATENCY.record(SystemClock.elapsedRealtime() - start);
+            response.end();
+        });
+    }
 
     private void responseProxyData(AsyncHttpServerResponse response, AsyncHttpResponse responseProxy, ByteBufferList buffer){
         if(responseProxy == null) {
@@ -760,6 +832,7 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
             for (WebSocket socket: mWebClients) {
                 try {
                     socket.send(message);
+                    Metrics.WS_MESSAGES.increment();
                 }catch (Exception e){
                     Log.e(TAG, "send websocket msg error", e);
                 }
@@ -772,6 +845,7 @@ public class HttpServer implements AudioPlayer.OnChangedListener {
         for (String key: mRemoteClients.keySet()) {
             try {
                 Objects.requireNonNull(mRemoteClients.get(key)).send(msg);
+                Metrics.WS_MESSAGES.increment();
             }catch (Exception e){
                 Log.e(TAG, "send websocket msg error", e);
             }
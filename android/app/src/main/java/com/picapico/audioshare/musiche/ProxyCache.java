@@ -0,0 +1,446 @@
+package com.picapico.audioshare.musiche;
+
+import android.util.Log;
+
+import com.koushikdutta.async.http.Headers;
+import com.picapico.audioshare.metrics.Counter;
+import com.picapico.audioshare.metrics.Metrics;
+
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.security.MessageDigest;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Response cache for buffered /proxy requests, keyed on method, URL and body plus the request
+ * headers the answer varies on: the ones its Vary header names, and Authorization and Cookie.
+ * Lifetimes follow the upstream Cache-Control max-age and no-cache, unless a rule maps a URL
+ * prefix to a fixed lifetime in seconds. Answers setting cookies, marked no-store or private,
+ * or varying on everything are never cached, whatever the rules say.
+ * Entries live in a memory LRU bounded in bytes and are written through to a size capped
+ * directory, whose least recently used files go first. An index of the directory is kept in
+ * memory, so a miss goes to the network right away; disk hits are read on their own threads
+ * and never wait behind writes.
+ */
+public class ProxyCache {
+    private static final String TAG = "AudioShareProxyCache";
+    private static final long MEMORY_BYTES = 4 * 1024 * 1024;
+    private static final long DISK_BYTES = 32 * 1024 * 1024;
+    private static final int MAX_ENTRY_BYTES = 1024 * 1024;
+    private static final int DISK_READERS = 2;
+    private static final String[] IDENTITY_HEADERS = {"authorization", "cookie"};
+    public static final String TIER_MEMORY = "memory";
+    public static final String TIER_DISK = "disk";
+    private final File mDirectory;
+    private final ExecutorService mDiskExecutor = Executors.newSingleThreadExecutor();
+    private final ExecutorService mReadExecutor = Executors.newFixedThreadPool(DISK_READERS);
+    private final LinkedHashMap<String, Entry> mMemory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Long> mDiskIndex = new HashMap<>();
+    private final Map<String, List<String>> mVary = new HashMap<>();
+    private final Counter mMemoryHits = Metrics.REGISTRY.counter("audioshare_proxy_cache_memory_hits_total",
+            "Proxy requests answered from the memory cache");
+    private final Counter mDiskHits = Metrics.REGISTRY.counter("audioshare_proxy_cache_disk_hits_total",
+            "Proxy requests answered from the disk cache");
+    private final Counter mMisses = Metrics.REGISTRY.counter("audioshare_proxy_cache_misses_total",
+            "Proxy requests sent upstream");
+    private long memoryBytes = 0;
+    private volatile long diskBytes = 0;
+    private String rulesText = null;
+    private List<Map.Entry<String, Long>> rules = Collections.emptyList();
+
+    public static final class Entry {
+        final int code;
+        final String contentType;
+        final Map<String, String> headers;
+        final byte[] body;
+        final long expiresMillis;
+
+        public Entry(int code, String contentType, Map<String, String> headers, byte[] body, long expiresMillis) {
+            this.code = code;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.body = body;
+            this.expiresMillis = expiresMillis;
+        }
+
+        long size() {
+            long size = body.length + 64;
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                size += header.getKey().length() + header.getValue().length();
+            }
+            return size;
+        }
+    }
+
+    public interface OnEntryListener {
+        /** Entry is null on a miss, tier tells where a hit came from. */
+        void onEntry(Entry entry, String tier);
+    }
+
+    public ProxyCache(File directory) {
+        mDirectory = directory;
+        Metrics.REGISTRY.gauge("audioshare_proxy_cache_memory_bytes", "Bytes held by the memory cache", () -> {
+            synchronized (mMemory) {
+                return memoryBytes;
+            }
+        });
+        Metrics.REGISTRY.gauge("audioshare_proxy_cache_disk_bytes", "Bytes held by the disk cache", () -> diskBytes);
+        mDiskExecutor.execute(this::loadDiskIndex);
+    }
+
+    /**
+     * Answers a memory hit right away and a disk hit from a reader thread. A miss is answered
+     * right away too, also while the disk index is still loading.
+     */
+    public void get(ProxyRequestData requestData, OnEntryListener listener) {
+        String key = getKey(requestData);
+        long now = System.currentTimeMillis();
+        Entry cached;
+        synchronized (mMemory) {
+            cached = mMemory.get(key);
+            if(cached != null && cached.expiresMillis <= now) {
+                removeMemory(key);
+                cached = null;
+            }
+        }
+        if(cached != null) {
+            mMemoryHits.increment();
+            listener.onEntry(cached, TIER_MEMORY);
+            return;
+        }
+        Long expiresMillis;
+        synchronized (mDiskIndex) {
+            expiresMillis = mDiskIndex.get(key);
+        }
+        if(expiresMillis == null || expiresMillis <= now) {
+            mMisses.increment();
+            listener.onEntry(null, null);
+            return;
+        }
+        boolean queued = execute(mReadExecutor, () -> {
+            Entry entry = readDisk(key, now);
+            if(entry == null) {
+                mMisses.increment();
+                listener.onEntry(null, null);
+                return;
+            }
+            mDiskHits.increment();
+            putMemory(key, entry);
+            listener.onEntry(entry, TIER_DISK);
+        });
+        if(!queued) {
+            mMisses.increment();
+            listener.onEntry(null, null);
+        }
+    }
+
+    /** Stores an answer {@link #getTtlMillis} allowed, under the headers its Vary names. */
+    public void put(ProxyRequestData requestData, Headers headers, Entry entry) {
+        if(entry.body.length > MAX_ENTRY_BYTES) return;
+        String baseKey = getBaseKey(requestData);
+        List<String> vary = parseVary(headers.get("Vary"));
+        synchronized (mVary) {
+            mVary.put(baseKey, vary);
+        }
+        String key = getKey(baseKey, requestData, vary);
+        putMemory(key, entry);
+        execute(mDiskExecutor, () -> writeDisk(key, baseKey, vary, entry));
+    }
+
+    /**
+     * Stops the disk threads, writes already queued still finish. Lookups answer from memory
+     * or as a miss afterwards.
+     */
+    public void close() {
+        mReadExecutor.shutdownNow();
+        mDiskExecutor.shutdown();
+    }
+
+    private static boolean execute(ExecutorService executor, Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Lifetime in milliseconds for an upstream answer, 0 when it must not be cached.
+     * @param rulesJson object mapping URL prefixes to seconds, the longest matching prefix applies
+     */
+    public long getTtlMillis(ProxyRequestData requestData, int code, Headers headers, String rulesJson) {
+        if(code != 200 || headers.get("Set-Cookie") != null) return 0;
+        String vary = headers.get("Vary");
+        if(vary != null && vary.contains("*")) return 0;
+        String cacheControl = headers.get("Cache-Control");
+        List<String> directives = new ArrayList<>();
+        if(cacheControl != null) {
+            for (String directive : cacheControl.toLowerCase().split(",")) {
+                directives.add(directive.trim());
+            }
+        }
+        if(directives.contains("no-store") || directives.contains("private")) return 0;
+        String url = requestData.getUrl();
+        String matched = null;
+        long seconds = 0;
+        for (Map.Entry<String, Long> rule : getRules(rulesJson)) {
+            if(url.startsWith(rule.getKey()) && (matched == null || rule.getKey().length() > matched.length())) {
+                matched = rule.getKey();
+                seconds = rule.getValue();
+            }
+        }
+        if(matched != null) return Math.max(0, seconds) * 1000;
+        if(directives.contains("no-cache")) return 0;
+        for (String directive : directives) {
+            if(directive.startsWith("max-age=")) {
+                try {
+                    seconds = Long.parseLong(directive.substring(8).trim());
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return Math.max(0, seconds) * 1000;
+    }
+
+    private String getKey(ProxyRequestData requestData) {
+        String baseKey = getBaseKey(requestData);
+        List<String> vary;
+        synchronized (mVary) {
+            vary = mVary.get(baseKey);
+        }
+        return getKey(baseKey, requestData, vary == null ? Collections.<String>emptyList() : vary);
+    }
+
+    private static String getBaseKey(ProxyRequestData requestData) {
+        return hash(requestData.getMethod() + '\n' + requestData.getUrl() + "\n\n" + requestData.getData());
+    }
+
+    private static String getKey(String baseKey, ProxyRequestData requestData, List<String> vary) {
+        List<String> names = new ArrayList<>(vary);
+        for (String name : IDENTITY_HEADERS) {
+            if(!names.contains(name)) names.add(name);
+        }
+        Collections.sort(names);
+        StringBuilder text = new StringBuilder(baseKey).append('\n');
+        for (String name : names) {
+            text.append(name).append(':').append(getHeader(requestData, name)).append('\n');
+        }
+        return hash(text.toString());
+    }
+
+    private static String getHeader(ProxyRequestData requestData, String name) {
+        for (Map.Entry<String, String> header : requestData.getHeaders().entrySet()) {
+            if(header.getKey().equalsIgnoreCase(name)) return header.getValue();
+        }
+        return "";
+    }
+
+    private static List<String> parseVary(String vary) {
+        List<String> names = new ArrayList<>();
+        if(vary == null) return names;
+        for (String name : vary.split(",")) {
+            name = name.trim().toLowerCase();
+            if(!name.isEmpty() && !names.contains(name)) names.add(name);
+        }
+        return names;
+    }
+
+    private static String hash(String text) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(text.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder();
+            for (byte b : hash) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (Exception e) {
+            return String.valueOf(text.hashCode());
+        }
+    }
+
+    private synchronized List<Map.Entry<String, Long>> getRules(String rulesJson) {
+        if(rulesJson == null) rulesJson = "";
+        if(rulesJson.equals(rulesText)) return rules;
+        List<Map.Entry<String, Long>> parsed = new ArrayList<>();
+        if(!rulesJson.isEmpty()) {
+            try {
+                JSONObject object = new JSONObject(rulesJson);
+                for (Iterator<String> it = object.keys(); it.hasNext(); ) {
+                    String prefix = it.next();
+                    parsed.add(new AbstractMap.SimpleEntry<>(prefix, object.getLong(prefix)));
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "invalid proxy cache rules: " + e);
+            }
+        }
+        rulesText = rulesJson;
+        rules = parsed;
+        return rules;
+    }
+
+    private void putMemory(String key, Entry entry) {
+        synchronized (mMemory) {
+            removeMemory(key);
+            mMemory.put(key, entry);
+            memoryBytes += entry.size();
+            Iterator<Map.Entry<String, Entry>> iterator = mMemory.entrySet().iterator();
+            while (memoryBytes > MEMORY_BYTES && iterator.hasNext()) {
+                memoryBytes -= iterator.next().getValue().size();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void removeMemory(String key) {
+        Entry removed = mMemory.remove(key);
+        if(removed != null) memoryBytes -= removed.size();
+    }
+
+    /** Disk thread, indexes the entries left from earlier runs and drops expired ones. */
+    private void loadDiskIndex() {
+        File[] files = mDirectory.listFiles();
+        if(files == null) return;
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File file : files) {
+            if(file.getName().endsWith(".tmp")) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                continue;
+            }
+            try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+                long expiresMillis = input.readLong();
+                String baseKey = input.readUTF();
+                List<String> vary = readVary(input);
+                if(expiresMillis > now) {
+                    synchronized (mVary) {
+                        if(!mVary.containsKey(baseKey)) mVary.put(baseKey, vary);
+                    }
+                    synchronized (mDiskIndex) {
+                        mDiskIndex.put(file.getName(), expiresMillis);
+                    }
+                    total += file.length();
+                    continue;
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "index proxy cache error: " + e);
+            }
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+        diskBytes += total;
+    }
+
+    private static List<String> readVary(DataInputStream input) throws Exception {
+        int count = input.readInt();
+        List<String> vary = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            vary.add(input.readUTF());
+        }
+        return vary;
+    }
+
+    /** Reader thread. */
+    private Entry readDisk(String key, long now) {
+        File file = new File(mDirectory, key);
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            long expiresMillis = input.readLong();
+            input.readUTF();
+            readVary(input);
+            if(expiresMillis <= now) return null;
+            int code = input.readInt();
+            String contentType = input.readUTF();
+            int count = input.readInt();
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                headers.put(input.readUTF(), input.readUTF());
+            }
+            byte[] body = new byte[input.readInt()];
+            input.readFully(body);
+            //noinspection ResultOfMethodCallIgnored
+            file.setLastModified(now);
+            return new Entry(code, contentType, headers, body, expiresMillis);
+        } catch (Exception e) {
+            Log.w(TAG, "read proxy cache error: " + e);
+            execute(mDiskExecutor, () -> deleteDisk(file));
+            return null;
+        }
+    }
+
+    /** Disk thread. */
+    private void writeDisk(String key, String baseKey, List<String> vary, Entry entry) {
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) return;
+        File file = new File(mDirectory, key);
+        File temp = new File(mDirectory, key + ".tmp");
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(temp))) {
+            output.writeLong(entry.expiresMillis);
+            output.writeUTF(baseKey);
+            output.writeInt(vary.size());
+            for (String name : vary) {
+                output.writeUTF(name);
+            }
+            output.writeInt(entry.code);
+            output.writeUTF(entry.contentType);
+            output.writeInt(entry.headers.size());
+            for (Map.Entry<String, String> header : entry.headers.entrySet()) {
+                output.writeUTF(header.getKey());
+                output.writeUTF(header.getValue());
+            }
+            output.writeInt(entry.body.length);
+            output.write(entry.body);
+        } catch (Exception e) {
+            Log.w(TAG, "write proxy cache error: " + e);
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        long previous = file.length();
+        if(!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+        diskBytes += file.length() - previous;
+        synchronized (mDiskIndex) {
+            mDiskIndex.put(key, entry.expiresMillis);
+        }
+        trimDisk();
+    }
+
+    private void trimDisk() {
+        if(diskBytes <= DISK_BYTES) return;
+        File[] files = mDirectory.listFiles();
+        if(files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File file : files) {
+            if(diskBytes <= DISK_BYTES) break;
+            deleteDisk(file);
+        }
+    }
+
+    /** Disk thread. */
+    private void deleteDisk(File file) {
+        synchronized (mDiskIndex) {
+            mDiskIndex.remove(file.getName());
+        }
+        long length = file.length();
+        if(file.delete()) diskBytes -= length;
+    }
+}
@@ -0,0 +1,282 @@
+package com.picapico.audioshare.musiche;
+
+import android.content.res.AssetManager;
+import android.util.Log;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Index of the web UI assets, built once on a background thread. Every asset gets its MIME
+ * type and a content hash for the ETag up front; assets within the memory budget are kept in
+ * memory together with a gzip variant when that is smaller, so the reactor thread answers
+ * them without touching the AssetManager. File names carrying a hex build hash never change
+ * content and are sent as immutable, everything else is revalidated with If-None-Match.
+ * Requests arriving before the index is built read the asset directly, uncached, so the
+ * reactor thread never waits for the index.
+ */
+public class StaticAssets {
+    private static final String TAG = "AudioShareStaticAssets";
+    private static final String INDEX = "index.html";
+    private static final int MAX_MEMORY_ASSET = 2 * 1024 * 1024;
+    private static final int MEMORY_BUDGET = 12 * 1024 * 1024;
+    /** A delimited hex content hash before the extension, with digits and letters so dates and words do not match. */
+    private static final Pattern HASHED_NAME = Pattern.compile(".*[.-](?=[0-9a-f]*[0-9])(?=[0-9a-f]*[a-f])[0-9a-f]{8,}\\.[A-Za-z0-9]+$");
+    private static final Map<String, String> MIME_TYPES = new HashMap<>();
+    static {
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("js", "application/javascript; charset=utf-8");
+        MIME_TYPES.put("mjs", "application/javascript; charset=utf-8");
+        MIME_TYPES.put("css", "text/css; charset=utf-8");
+        MIME_TYPES.put("json", "application/json; charset=utf-8");
+        MIME_TYPES.put("map", "application/json; charset=utf-8");
+        MIME_TYPES.put("txt", "text/plain; charset=utf-8");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("webm", "video/webm");
+        MIME_TYPES.put("wasm", "application/wasm");
+    }
+    private final AssetManager mAssetManager;
+    private final Map<String, Asset> mAssets = new HashMap<>();
+    private volatile boolean indexed = false;
+    private long memoryBytes = 0;
+
+    static final class Asset {
+        final String path;
+        final String mimeType;
+        final long size;
+        final String etag;
+        final boolean immutable;
+        byte[] data;
+        byte[] gzip;
+
+        Asset(String path, String mimeType, long size, String etag) {
+            this.path = path;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.etag = etag;
+            this.immutable = HASHED_NAME.matcher(path).matches();
+        }
+    }
+
+    public StaticAssets(AssetManager assetManager) {
+        mAssetManager = assetManager;
+    }
+
+    public void indexAsync(){
+        new Thread(this::ensureIndexed, TAG).start();
+    }
+
+    public String getMimeType(String filePath){
+        if(filePath != null && filePath.startsWith("/")) filePath = filePath.substring(1);
+        Asset asset = find(filePath);
+        return asset != null ? asset.mimeType : getMimeTypeByName(filePath);
+    }
+
+    /** Answers with the asset or the SPA entry page, false when neither exists. */
+    public boolean send(AsyncHttpServerRequest request, AsyncHttpServerResponse response){
+        String path = request.getPath().substring(1);
+        if(!indexed) return sendDirect(path.isEmpty() ? INDEX : path, response);
+        Asset asset = find(path.isEmpty() ? INDEX : path);
+        if(asset == null) asset = find(INDEX);
+        if(asset == null) return false;
+        response.getHeaders().set("ETag", asset.etag);
+        response.getHeaders().set("Cache-Control", asset.immutable ?
+                "public, max-age=31536000, immutable" : "no-cache");
+        if(asset.gzip != null) response.getHeaders().set("Vary", "Accept-Encoding");
+        if(matches(request.getHeaders().get("If-None-Match"), asset.etag)){
+            response.code(304);
+            response.end();
+            return true;
+        }
+        if(asset.gzip != null && acceptsGzip(request.getHeaders().get("Accept-Encoding"))){
+            response.getHeaders().set("Content-Encoding", "gzip");
+            response.send(asset.mimeType, asset.gzip);
+            return true;
+        }
+        if(asset.data != null){
+            response.send(asset.mimeType, asset.data);
+            return true;
+        }
+        try {
+            InputStream inputStream = mAssetManager.open(asset.path);
+            response.setContentType(asset.mimeType);
+            response.sendStream(inputStream, asset.size);
+            return true;
+        }catch (Exception e){
+            Log.e(TAG, "open asset error: " + asset.path, e);
+        }
+        return false;
+    }
+
+    private boolean sendDirect(String path, AsyncHttpServerResponse response){
+        byte[] data = read(path);
+        String mimeType = getMimeTypeByName(path);
+        if(data == null){
+            data = read(INDEX);
+            mimeType = getMimeTypeByName(INDEX);
+        }
+        if(data == null) return false;
+        response.getHeaders().set("Cache-Control", "no-cache");
+        response.send(mimeType, data);
+        return true;
+    }
+
+    private byte[] read(String path){
+        try (InputStream inputStream = mAssetManager.open(path)) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                content.write(buffer, 0, read);
+            }
+            return content.toByteArray();
+        }catch (Exception e){
+            return null;
+        }
+    }
+
+    private Asset find(String path){
+        if(!indexed) return null;
+        synchronized (mAssets){
+            return mAssets.get(path);
+        }
+    }
+
+    private void ensureIndexed(){
+        if(indexed) return;
+        synchronized (this){
+            if(indexed) return;
+            long start = System.currentTimeMillis();
+            index("");
+            indexed = true;
+            Log.i(TAG, "indexed " + mAssets.size() + " assets, " + memoryBytes + " bytes in memory, " +
+                    (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private void index(String directory){
+        String[] names;
+        try {
+            names = mAssetManager.list(directory);
+        }catch (Exception e){
+            return;
+        }
+        if(names == null) return;
+        for (String name : names) {
+            String path = directory.isEmpty() ? name : directory + "/" + name;
+            if(!indexFile(path)) index(path);
+        }
+    }
+
+    private boolean indexFile(String path){
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        long size = 0;
+        try (InputStream inputStream = mAssetManager.open(path)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+                if(size + read <= MAX_MEMORY_ASSET) content.write(buffer, 0, read);
+                size += read;
+            }
+            Asset asset = new Asset(path, getMimeTypeByName(path), size, toETag(digest.digest()));
+            if(size <= MAX_MEMORY_ASSET && memoryBytes + size <= MEMORY_BUDGET){
+                asset.data = content.toByteArray();
+                memoryBytes += size;
+                asset.gzip = compress(asset);
+                if(asset.gzip != null) memoryBytes += asset.gzip.length;
+            }
+            synchronized (mAssets){
+                mAssets.put(path, asset);
+            }
+            return true;
+        }catch (Exception e){
+            return false;
+        }
+    }
+
+    private byte[] compress(Asset asset) throws Exception {
+        if(!isCompressible(asset.mimeType)) return null;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+            gzip.write(asset.data);
+        }
+        byte[] result = output.toByteArray();
+        return result.length < asset.data.length * 9 / 10 ? result : null;
+    }
+
+    private static boolean isCompressible(String mimeType){
+        return mimeType.startsWith("text/") || mimeType.startsWith("application/javascript") ||
+                mimeType.startsWith("application/json") || mimeType.equals("image/svg+xml") ||
+                mimeType.equals("application/wasm");
+    }
+
+    /** Whether gzip is acceptable, an explicit gzip entry wins over the wildcard, q=0 refuses it. */
+    private static boolean acceptsGzip(String acceptEncoding){
+        if(acceptEncoding == null) return false;
+        float gzip = -1;
+        float wildcard = -1;
+        for (String item : acceptEncoding.split(",")) {
+            String[] parts = item.split(";");
+            String coding = parts[0].trim().toLowerCase();
+            float quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if(!parameter.startsWith("q=")) continue;
+                try {
+                    quality = Float.parseFloat(parameter.substring(2).trim());
+                }catch (NumberFormatException e){
+                    quality = 0;
+                }
+            }
+            if(coding.equals("gzip") || coding.equals("x-gzip")) gzip = Math.max(gzip, quality);
+            if(coding.equals("*")) wildcard = quality;
+        }
+        return gzip >= 0 ? gzip > 0 : wildcard > 0;
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag){
+        if(ifNoneMatch == null) return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            String value = tag.trim();
+            if(value.startsWith("W/")) value = value.substring(2);
+            if(value.equals(etag) || value.equals("*")) return true;
+        }
+        return false;
+    }
+
+    private static String toETag(byte[] hash){
+        StringBuilder text = new StringBuilder("\"");
+        for (int i = 0; i < 10; i++) {
+            text.append(String.format("%02x", hash[i]));
+        }
+        return text.append('"').toString();
+    }
+
+    private static String getMimeTypeByName(String path){
+        if(path == null) return "text/html";
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        if(dot <= slash) return "text/html";
+        String mimeType = MIME_TYPES.get(path.substring(dot + 1).toLowerCase());
+        return mimeType != null ? mimeType : "text/html";
+    }
+}
@@ -18,6 +18,8 @@ import androidx.media3.common.util.UnstableApi;
 import androidx.media3.exoplayer.DefaultRenderersFactory;
 import androidx.media3.exoplayer.SeekParameters;
 
+import com.picapico.audioshare.metrics.Metrics;
+
 public class ExoPlayer implements IMediaPlayer, Player.Listener {
     private static final String TAG = "AudioShareExoPlayer";
     private final androidx.media3.exoplayer.ExoPlayer mediaPlayer;
@@ -28,6 +30,7 @@ public class ExoPlayer implements IMediaPlayer, Player.Listener {
     private boolean playing = false;
     private int position = 0;
     private int duration = 0;
+    private int playbackStatePrevious = Player.STATE_IDLE;
     @OptIn(markerClass = UnstableApi.class) public ExoPlayer(Context context){
         AudioAttributes audioAttributes = new AudioAttributes.Builder()
                 .setUsage(C.USAGE_MEDIA)
@@ -150,6 +153,10 @@ public class ExoPlayer implements IMediaPlayer, Player.Listener {
     @Override
     public void onPlaybackStateChanged(int playbackState) {
         Log.i(TAG, "onPlayerStateChanged: " + playbackState);
+        if(playbackState == Player.STATE_BUFFERING && playbackStatePrevious == Player.STATE_READY){
+            Metrics.PLAYER_REBUFFERS.increment();
+        }
+        playbackStatePrevious = playbackState;
         if(mediaChangedListener != null && playbackState == Player.STATE_ENDED){
             mediaChangedListener.onPlaybackStateChanged(Listener.STATE_ENDED);
         }else if(playbackState == Player.STATE_READY) updateProgress();
@@ -0,0 +1,216 @@
+package com.picapico.audioshare.pcm;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps idle {@link AudioTrack}s of recently used output formats so a stream start does not pay
+ * for creating one. Tracks are created ahead of time by {@link #prewarm(List)} on a background
+ * thread and go back to the pool paused and flushed when the mixer closes, the oldest idle
+ * tracks are released once more than the pool size are kept. Tracks ask for the low latency
+ * path, the performance mode from Android O and the attribute flag before.
+ */
+public class AudioTrackPool {
+    private static final String TAG = "AudioShareTrackPool";
+    private final int mMaxIdle;
+    private final LinkedList<Entry> mIdle = new LinkedList<>();
+    private final Map<AudioTrack, Format> mInUse = new HashMap<>();
+
+    public AudioTrackPool(int maxIdle) {
+        mMaxIdle = maxIdle;
+    }
+
+    /** Output format of a track, also the key tracks are pooled under. */
+    public static final class Format {
+        public final int sampleRate;
+        public final int channelMask;
+        public final int encoding;
+        public final int bufferSize;
+
+        public Format(int sampleRate, int channelMask, int encoding, int bufferSize) {
+            this.sampleRate = sampleRate;
+            this.channelMask = channelMask;
+            this.encoding = encoding;
+            this.bufferSize = bufferSize;
+        }
+
+        /** Parses {@link #toString()}, null when the text is not a format. */
+        public static Format parse(String text) {
+            String[] values = text.split(":");
+            if(values.length != 4) return null;
+            try {
+                return new Format(Integer.parseInt(values[0]), Integer.parseInt(values[1]),
+                        Integer.parseInt(values[2]), Integer.parseInt(values[3]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Format)) return false;
+            Format format = (Format) o;
+            return sampleRate == format.sampleRate && channelMask == format.channelMask &&
+                    encoding == format.encoding && bufferSize == format.bufferSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((sampleRate * 31 + channelMask) * 31 + encoding) * 31 + bufferSize;
+        }
+
+        @Override
+        public String toString() {
+            return sampleRate + ":" + channelMask + ":" + encoding + ":" + bufferSize;
+        }
+    }
+
+    private static final class Entry {
+        final Format format;
+        final AudioTrack track;
+
+        Entry(Format format, AudioTrack track) {
+            this.format = format;
+            this.track = track;
+        }
+    }
+
+    /** Creates the missing idle tracks for the formats, most recent first, on a new thread. */
+    public void prewarm(List<Format> formats) {
+        List<Format> missing = new ArrayList<>(formats);
+        new Thread(() -> {
+            for (int i = 0; i < Math.min(mMaxIdle, missing.size()); i++) {
+                Format format = missing.get(i);
+                synchronized (this) {
+                    if(hasIdle(format)) continue;
+                }
+                AudioTrack track = create(format);
+                if(track == null) continue;
+                synchronized (this) {
+                    mIdle.addLast(new Entry(format, track));
+                    trim();
+                }
+                Log.i(TAG, "prewarmed track " + format);
+            }
+        }, TAG).start();
+    }
+
+    /** An idle track of the format when there is one, a new track otherwise. */
+    public AudioTrack acquire(Format format) {
+        AudioTrack track = null;
+        synchronized (this) {
+            Iterator<Entry> iterator = mIdle.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if(!entry.format.equals(format)) continue;
+                iterator.remove();
+                track = entry.track;
+                break;
+            }
+        }
+        if(track == null) {
+            track = create(format);
+            if(track == null) throw new IllegalStateException("create audio track failed: " + format);
+        }else {
+            Log.i(TAG, "reuse track " + format);
+        }
+        synchronized (this) {
+            mInUse.put(track, format);
+        }
+        return track;
+    }
+
+    /** Takes back a track from {@link #acquire(Format)}, the caller must not touch it anymore. */
+    public void recycle(AudioTrack track) {
+        Format format;
+        synchronized (this) {
+            format = mInUse.remove(track);
+        }
+        try {
+            track.pause();
+            track.flush();
+        } catch (Exception e) {
+            Log.e(TAG, "recycle track error: " + e);
+            format = null;
+        }
+        if(format == null || track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            return;
+        }
+        synchronized (this) {
+            mIdle.addFirst(new Entry(format, track));
+            trim();
+        }
+    }
+
+    /** Releases every idle track. */
+    public synchronized void clear() {
+        for (Entry entry : mIdle) {
+            entry.track.release();
+        }
+        mIdle.clear();
+    }
+
+    private boolean hasIdle(Format format) {
+        for (Entry entry : mIdle) {
+            if(entry.format.equals(format)) return true;
+        }
+        return false;
+    }
+
+    private void trim() {
+        while (mIdle.size() > mMaxIdle) {
+            mIdle.removeLast().track.release();
+        }
+    }
+
+    private static AudioTrack create(Format format) {
+        AudioFormat audioFormat = new AudioFormat.Builder()
+                .setChannelMask(format.channelMask)
+                .setEncoding(format.encoding)
+                .setSampleRate(format.sampleRate)
+                .build();
+        AudioAttributes.Builder audioAttributes = new AudioAttributes.Builder()
+                .setLegacyStreamType(AudioManager.STREAM_MUSIC)
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N && Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            audioAttributes.setFlags(AudioAttributes.FLAG_LOW_LATENCY);
+        }
+        try {
+            AudioTrack track;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                track = new AudioTrack.Builder()
+                        .setAudioAttributes(audioAttributes.build())
+                        .setAudioFormat(audioFormat)
+                        .setBufferSizeInBytes(format.bufferSize)
+                        .setTransferMode(AudioTrack.MODE_STREAM)
+                        .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                        .build();
+            }else {
+                track = new AudioTrack(
+                        audioAttributes.build(),
+                        audioFormat,
+                        format.bufferSize,
+                        AudioTrack.MODE_STREAM,
+                        AudioManager.AUDIO_SESSION_ID_GENERATE);
+            }
+            if(track.getState() == AudioTrack.STATE_INITIALIZED) return track;
+            track.release();
+        } catch (Exception e) {
+            Log.e(TAG, "create track error: " + e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,72 @@
+package com.picapico.audioshare.pcm;
+
+/**
+ * Offset between the sender clock and the local {@link System#nanoTime()} clock, measured with
+ * NTP style exchanges: the sender stamps t1, the receiver stamps t2 on receive and t3 on reply,
+ * and the sender returns t4 once the reply arrived, all in microseconds of their own clock.
+ * Among the recent samples the one with the smallest round trip wins, its offset is the least
+ * disturbed by queuing, and the estimate moves towards it gradually so playout does not jump.
+ */
+public class ClockSync {
+    private static final int WINDOW = 8;
+    private static final double SMOOTHING = 0.25;
+    private final long[] offsets = new long[WINDOW];
+    private final long[] delays = new long[WINDOW];
+    private int count = 0;
+    private int next = 0;
+    private double offsetMicros = 0;
+    private volatile long localOffsetMicros = 0;
+    private volatile long roundTripMicros = -1;
+    private volatile boolean synced = false;
+
+    public static long nowMicros() {
+        return System.nanoTime() / 1000;
+    }
+
+    /** Adds one exchange, returns false when the sample was not usable. */
+    public synchronized boolean addSample(long t1, long t2, long t3, long t4) {
+        long delay = (t4 - t1) - (t3 - t2);
+        if(delay < 0) return false;
+        offsets[next] = ((t2 - t1) + (t3 - t4)) / 2;
+        delays[next] = delay;
+        next = (next + 1) % WINDOW;
+        count = Math.min(WINDOW, count + 1);
+        int best = 0;
+        for (int i = 1; i < count; i++) {
+            if(delays[i] < delays[best]) best = i;
+        }
+        if(synced) {
+            offsetMicros += (offsets[best] - offsetMicros) * SMOOTHING;
+        }else {
+            offsetMicros = offsets[best];
+        }
+        localOffsetMicros = (long) offsetMicros;
+        roundTripMicros = delays[best];
+        synced = true;
+        return true;
+    }
+
+    public boolean isSynced() {
+        return synced;
+    }
+
+    /** Local clock minus sender clock in microseconds. */
+    public long getOffsetMicros() {
+        return localOffsetMicros;
+    }
+
+    /** Round trip of the sample the offset is based on, -1 before the first exchange. */
+    public long getRoundTripMicros() {
+        return roundTripMicros;
+    }
+
+    /** Converts a sender clock time into local {@link System#nanoTime()} nanoseconds. */
+    public long toLocalNanos(long senderMicros) {
+        return (senderMicros + localOffsetMicros) * 1000;
+    }
+
+    /** Current time on the sender clock. */
+    public long senderNowMicros() {
+        return nowMicros() - localOffsetMicros;
+    }
+}
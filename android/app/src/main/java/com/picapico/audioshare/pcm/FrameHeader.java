@@ -0,0 +1,115 @@
+package com.picapico.audioshare.pcm;
+
+/**
+ * Header of one stream frame, reused by {@link FrameReader} for every frame.
+ * <p>
+ * The protocol version is carried in the high nibble of the command byte that follows the
+ * magic, so v1 senders (nibble 0) keep the bare little endian length prefix. v2 frames start with
+ * <pre>
+ * byte   version (2)
+ * byte   payload type
+ * uint16 flags
+ * int    sequence of audio frames
+ * long   sender timestamp in samples
+ * int    payload length
+ * int    CRC32 of the payload, only with {@link #FLAG_CRC}
+ * long   presentation time of the first sample in sender clock microseconds, only with {@link #FLAG_PTS}
+ * long   capture time of the first sample in sender clock microseconds, only with {@link #FLAG_CAPTURE}
+ * </pre>
+ * all little endian.
+ */
+public class FrameHeader {
+    public static final int VERSION_1 = 1;
+    public static final int VERSION_2 = 2;
+    public static final int MAX_VERSION = VERSION_2;
+    public static final int TYPE_HEARTBEAT = 0;
+    public static final int TYPE_AUDIO = 1;
+    /** Payload is a control command byte followed by its arguments, as on a control session. */
+    public static final int TYPE_CONTROL = 2;
+    public static final int FLAG_CRC = 1;
+    public static final int FLAG_PTS = 2;
+    public static final int FLAG_CAPTURE = 4;
+    public static final int V2_SIZE = 20;
+    public static final int CRC_SIZE = 4;
+    public static final int PTS_SIZE = 8;
+    public static final int CAPTURE_SIZE = 8;
+    public static final long NO_TIMESTAMP = -1;
+    int version = VERSION_1;
+    int type;
+    int flags;
+    int sequence;
+    long timestamp = NO_TIMESTAMP;
+    int length;
+    int crc;
+    long presentationTime = NO_TIMESTAMP;
+    long captureTime = NO_TIMESTAMP;
+
+    /** Frame version announced in the command byte, 1 when the sender left it unset. */
+    public static int versionOf(byte head) {
+        return Math.max(VERSION_1, (head >> 4) & 0x0F);
+    }
+
+    public static byte commandOf(byte head) {
+        return (byte) (head & 0x0F);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public boolean isHeartbeat() {
+        return type == TYPE_HEARTBEAT;
+    }
+
+    public boolean isAudio() {
+        return type == TYPE_AUDIO;
+    }
+
+    public boolean isControl() {
+        return type == TYPE_CONTROL;
+    }
+
+    public boolean hasCrc() {
+        return (flags & FLAG_CRC) != 0;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /** Sender timestamp in samples, {@link #NO_TIMESTAMP} for v1 frames. */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public int getCrc() {
+        return crc;
+    }
+
+    public boolean hasPresentationTime() {
+        return (flags & FLAG_PTS) != 0;
+    }
+
+    /** Sender clock microseconds the first sample should be heard at, see {@link ClockSync}. */
+    public long getPresentationTime() {
+        return presentationTime;
+    }
+
+    /** Latency probe, set by senders that negotiated {@link StreamOptions#OPTION_LATENCY_PROBE}. */
+    public boolean hasCaptureTime() {
+        return (flags & FLAG_CAPTURE) != 0;
+    }
+
+    /** Sender clock microseconds the first sample was captured at. */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+}
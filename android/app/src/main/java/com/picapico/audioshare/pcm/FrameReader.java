@@ -0,0 +1,168 @@
+package com.picapico.audioshare.pcm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the length-prefixed PCM frames of a stream straight into the direct slots of a
+ * {@link PcmRingBuffer}, so steady-state playback allocates nothing per frame.
+ * v2 streams also count sequence gaps and check the payload CRC, see {@link FrameHeader}.
+ */
+public class FrameReader {
+    public static final int HEARTBEAT = 0;
+    private final ReadableByteChannel mChannel;
+    private final int mMaxFrameSize;
+    private final int version;
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(FrameHeader.V2_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer mDiscard;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mCrcScratch = new byte[4096];
+    private int expectedSequence = -1;
+    private long lost = 0;
+    private long corrupt = 0;
+
+    public FrameReader(ReadableByteChannel channel, int version, int maxFrameSize, int discardSize) {
+        mChannel = channel;
+        this.version = version;
+        mMaxFrameSize = maxFrameSize;
+        mDiscard = ByteBuffer.allocateDirect(discardSize);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /** Audio frames missing from the v2 sequence. */
+    public long getLost() {
+        return lost;
+    }
+
+    /** Frames dropped because their CRC did not match. */
+    public long getCorrupt() {
+        return corrupt;
+    }
+
+    /** Reads the next frame header, v1 length prefixes are mapped to heartbeat or audio frames. */
+    public void readHeader(FrameHeader header) throws IOException {
+        if(version == FrameHeader.VERSION_1) {
+            header.length = readLength();
+            header.type = header.length == HEARTBEAT ? FrameHeader.TYPE_HEARTBEAT : FrameHeader.TYPE_AUDIO;
+            return;
+        }
+        ((Buffer) mHeader).clear();
+        ((Buffer) mHeader).limit(FrameHeader.V2_SIZE);
+        readFully(mHeader);
+        if(mHeader.get(0) != version) {
+            throw new IOException("invalid frame version: " + mHeader.get(0));
+        }
+        header.version = version;
+        header.type = mHeader.get(1) & 0xFF;
+        header.flags = mHeader.getShort(2) & 0xFFFF;
+        header.sequence = mHeader.getInt(4);
+        header.timestamp = mHeader.getLong(8);
+        header.length = mHeader.getInt(16);
+        if(header.length < 0 || header.length > mMaxFrameSize) {
+            throw new IOException("invalid frame length: " + header.length);
+        }
+        if(header.hasCrc()) {
+            ((Buffer) mHeader).clear();
+            ((Buffer) mHeader).limit(FrameHeader.CRC_SIZE);
+            readFully(mHeader);
+            header.crc = mHeader.getInt(0);
+        }
+        if(header.hasPresentationTime()) {
+            ((Buffer) mHeader).clear();
+            ((Buffer) mHeader).limit(FrameHeader.PTS_SIZE);
+            readFully(mHeader);
+            header.presentationTime = mHeader.getLong(0);
+        }else {
+            header.presentationTime = FrameHeader.NO_TIMESTAMP;
+        }
+        if(header.hasCaptureTime()) {
+            ((Buffer) mHeader).clear();
+            ((Buffer) mHeader).limit(FrameHeader.CAPTURE_SIZE);
+            readFully(mHeader);
+            header.captureTime = mHeader.getLong(0);
+        }else {
+            header.captureTime = FrameHeader.NO_TIMESTAMP;
+        }
+        if(header.isAudio()) {
+            if(expectedSequence >= 0 && header.sequence - expectedSequence > 0) {
+                lost += header.sequence - expectedSequence;
+            }
+            expectedSequence = header.sequence + 1;
+        }
+    }
+
+    /** Checks a flipped payload against the header CRC, counting mismatches. */
+    public boolean verify(FrameHeader header, ByteBuffer payload) {
+        if(!header.hasCrc()) return true;
+        ByteBuffer data = payload.duplicate();
+        mCrc.reset();
+        while (data.hasRemaining()) {
+            int count = Math.min(data.remaining(), mCrcScratch.length);
+            data.get(mCrcScratch, 0, count);
+            mCrc.update(mCrcScratch, 0, count);
+        }
+        if((int) mCrc.getValue() == header.crc) return true;
+        corrupt++;
+        return false;
+    }
+
+    /** Reads the next length prefix, {@link #HEARTBEAT} for keep-alive frames. */
+    public int readLength() throws IOException {
+        ((Buffer) mHeader).clear();
+        ((Buffer) mHeader).limit(4);
+        readFully(mHeader);
+        int length = mHeader.getInt(0);
+        if(length < 0 || length > mMaxFrameSize) {
+            throw new IOException("invalid frame length: " + length);
+        }
+        return length;
+    }
+
+    /** Reads a frame body into the ring, one slot at a time. */
+    public void readInto(PcmRingBuffer ringBuffer, int length) throws IOException {
+        while (length > 0) {
+            ByteBuffer slot = ringBuffer.claim();
+            int count = Math.min(length, slot.capacity());
+            ((Buffer) slot).limit(count);
+            readFully(slot);
+            ringBuffer.publish();
+            length -= count;
+        }
+    }
+
+    /** Reads a whole frame body into target and flips it, used when the frame has to be decoded first. */
+    public void readFrame(ByteBuffer target, int length) throws IOException {
+        ((Buffer) target).clear();
+        ((Buffer) target).limit(length);
+        readFully(target);
+        ((Buffer) target).flip();
+    }
+
+    /** Consumes a frame body without keeping it. */
+    public void skip(int length) throws IOException {
+        while (length > 0) {
+            int count = Math.min(length, mDiscard.capacity());
+            ((Buffer) mDiscard).clear();
+            ((Buffer) mDiscard).limit(count);
+            readFully(mDiscard);
+            length -= count;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if(mChannel.read(buffer) < 0) {
+                throw new EOFException("read stream eol.");
+            }
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.picapico.audioshare.pcm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per stream count of every frame that was discarded, cut short or concealed, and of every
+ * output write that did not go through, sorted by where the problem came from: the network
+ * and the sender, the receive buffering, or the output device. Glitches less than
+ * {@link #BURST_GAP_MILLIS} apart form a burst, the worst bursts are kept with their wall
+ * clock start so they can be matched against other logs. Glitches are rare, so recording
+ * simply locks.
+ */
+public class GlitchStats {
+    /** Sequence gap, the frames never arrived. */
+    public static final int LOST = 0;
+    /** UDP packet arrived after its slot was played or given up. */
+    public static final int LATE = 1;
+    /** CRC mismatch, the frame was discarded. */
+    public static final int CORRUPT = 2;
+    /** Payload the decoder could not read. */
+    public static final int DECODE_ERROR = 3;
+    /** The stream ran dry and a period was concealed. */
+    public static final int STARVED = 4;
+    /** The receive ring was full and dropped its oldest chunk. */
+    public static final int RING_DROP = 5;
+    /** A chunk was dropped to bring latency back to the target. */
+    public static final int TRIMMED = 6;
+    /** The frame was skipped because the music player owns the output. */
+    public static final int PLAYER_DISCARD = 7;
+    /** The track took less than a whole period. */
+    public static final int SHORT_WRITE = 8;
+    /** The track write returned an error. */
+    public static final int WRITE_ERROR = 9;
+    /** A period was written while the track was not playing. */
+    public static final int NOT_PLAYING = 10;
+    /** PCM payload that is not a whole number of frames, discarded to keep the channels aligned. */
+    public static final int PARTIAL_FRAME = 11;
+    private static final String[] NAMES = {
+            "lost", "late", "corrupt", "decodeError", "starved", "ringDrop", "trimmed",
+            "playerDiscard", "shortWrite", "writeError", "notPlaying", "partialFrame"
+    };
+    private static final String[] CAUSES = {
+            "network", "network", "network", "network", "network", "receiver", "receiver",
+            "receiver", "device", "device", "device", "network"
+    };
+    private static final long BURST_GAP_MILLIS = 500;
+    private static final int WORST_BURSTS = 3;
+    private final long[] counts = new long[NAMES.length];
+    private final List<Burst> worst = new ArrayList<>();
+    private Burst current = null;
+
+    private static final class Burst {
+        final long startMillis;
+        final long startNanos;
+        long endNanos;
+        long count;
+
+        Burst(long startMillis, long startNanos) {
+            this.startMillis = startMillis;
+            this.startNanos = startNanos;
+            this.endNanos = startNanos;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("start", startMillis);
+            map.put("duration", (endNanos - startNanos) / 1_000_000);
+            map.put("count", count);
+            return map;
+        }
+    }
+
+    public void record(int kind) {
+        record(kind, 1);
+    }
+
+    public synchronized void record(int kind, long count) {
+        if(count <= 0) return;
+        counts[kind] += count;
+        long now = System.nanoTime();
+        if(current == null || now - current.endNanos > BURST_GAP_MILLIS * 1_000_000L) {
+            if(current != null) keep(current);
+            current = new Burst(System.currentTimeMillis(), now);
+        }
+        current.endNanos = now;
+        current.count += count;
+    }
+
+    public synchronized long getCount(int kind) {
+        return counts[kind];
+    }
+
+    /** Sum over the kinds with the cause, network, receiver or device. */
+    public synchronized long getCount(String cause) {
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            if(CAUSES[i].equals(cause)) total += counts[i];
+        }
+        return total;
+    }
+
+    /** Counts by kind and cause and the worst bursts, largest first. */
+    public synchronized Map<String, Object> toMap() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (int i = 0; i < counts.length; i++) {
+            map.put(NAMES[i], counts[i]);
+        }
+        map.put("network", getCount("network"));
+        map.put("receiver", getCount("receiver"));
+        map.put("device", getCount("device"));
+        List<Map<String, Object>> bursts = new ArrayList<>();
+        for (Burst burst : getWorst()) {
+            bursts.add(burst.toMap());
+        }
+        map.put("bursts", bursts);
+        return map;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append("network ").append(getCount("network"))
+                .append(", receiver ").append(getCount("receiver"))
+                .append(", device ").append(getCount("device"));
+        for (int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0) text.append(", ").append(NAMES[i]).append(' ').append(counts[i]);
+        }
+        for (Burst burst : getWorst()) {
+            text.append(", burst ").append(burst.count).append(" at ").append(burst.startMillis)
+                    .append(" for ").append((burst.endNanos - burst.startNanos) / 1_000_000).append("ms");
+        }
+        return text.toString();
+    }
+
+    private List<Burst> getWorst() {
+        List<Burst> result = new ArrayList<>(worst);
+        if(current != null) {
+            int i = 0;
+            while (i < result.size() && result.get(i).count >= current.count) i++;
+            result.add(i, current);
+            if(result.size() > WORST_BURSTS) result.remove(result.size() - 1);
+        }
+        return result;
+    }
+
+    private void keep(Burst burst) {
+        int i = 0;
+        while (i < worst.size() && worst.get(i).count >= burst.count) i++;
+        if(i >= WORST_BURSTS) return;
+        worst.add(i, burst);
+        if(worst.size() > WORST_BURSTS) worst.remove(worst.size() - 1);
+    }
+}
@@ -0,0 +1,193 @@
+package com.picapico.audioshare.pcm;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single selector loop accepting TCP clients and reading their handshake without blocking.
+ * The handshake layout is left to the {@link Listener}, which tells from the bytes received
+ * so far how many are needed in total. Only that many are read, so once it is complete the
+ * channel is switched back to blocking mode and handed over positioned on the first frame.
+ * Clients that do not finish within the deadline are closed. When too many handshakes are
+ * pending, the oldest one of the address holding the most is closed to make room, so a stalled
+ * or flooding peer only ever pushes out its own connections and new clients are still read.
+ */
+public class HandshakeServer implements Runnable {
+    private static final String TAG = "AudioShareHandshake";
+    public static final int MAX_HANDSHAKE_SIZE = 1024;
+    private final ServerSocketChannel mServer;
+    private final Listener mListener;
+    private final long mTimeoutNanos;
+    private final int mMaxPending;
+    private volatile Selector mSelector;
+
+    public interface Listener {
+        /** Total handshake length needed given the bytes received so far, -1 to reject the client. */
+        int getHandshakeLength(byte[] data, int count);
+
+        /** Called on the selector thread with a blocking channel, must not block. */
+        void onHandshake(SocketChannel channel, byte[] handshake);
+    }
+
+    public HandshakeServer(ServerSocketChannel server, Listener listener, int timeoutMillis, int maxPending) {
+        mServer = server;
+        mListener = listener;
+        mTimeoutNanos = timeoutMillis * 1_000_000L;
+        mMaxPending = maxPending;
+    }
+
+    public void stop() {
+        Selector selector = mSelector;
+        if(selector == null) return;
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void run() {
+        List<Pending> completed = new ArrayList<>();
+        try (Selector selector = Selector.open()) {
+            mSelector = selector;
+            mServer.configureBlocking(false);
+            mServer.register(selector, SelectionKey.OP_ACCEPT);
+            int pending = 0;
+            while (mServer.isOpen() && selector.isOpen()) {
+                selector.select(Math.max(1, mTimeoutNanos / 4_000_000L));
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()) {
+                        SocketChannel channel = mServer.accept();
+                        if(channel == null) continue;
+                        if(pending >= mMaxPending && evict(selector)) pending--;
+                        channel.configureBlocking(false);
+                        channel.socket().setTcpNoDelay(true);
+                        channel.register(selector, SelectionKey.OP_READ, new Pending(channel));
+                        pending++;
+                    }else if(key.isReadable()) {
+                        Pending client = (Pending) key.attachment();
+                        int state = client.read();
+                        if(state == 0) continue;
+                        key.cancel();
+                        pending--;
+                        if(state > 0) {
+                            completed.add(client);
+                        }else {
+                            close(client.channel);
+                        }
+                    }
+                }
+                long now = System.nanoTime();
+                for (SelectionKey key : selector.keys()) {
+                    if(!(key.attachment() instanceof Pending)) continue;
+                    Pending client = (Pending) key.attachment();
+                    if(key.isValid() && now - client.acceptNanos > mTimeoutNanos) {
+                        Log.w(TAG, "handshake timeout");
+                        key.cancel();
+                        close(client.channel);
+                        pending--;
+                    }
+                }
+                if(completed.isEmpty()) continue;
+                selector.selectNow();
+                for (Pending client : completed) {
+                    try {
+                        client.channel.configureBlocking(true);
+                        mListener.onHandshake(client.channel, Arrays.copyOf(client.data, client.count));
+                    } catch (Exception e) {
+                        Log.e(TAG, "dispatch client error: " + e);
+                        close(client.channel);
+                    }
+                }
+                completed.clear();
+            }
+        } catch (Exception e) {
+            if(mServer.isOpen()) Log.e(TAG, "handshake server error: " + e);
+        }
+        mSelector = null;
+    }
+
+    /** Closes the oldest pending handshake of the address with the most pending ones. */
+    private static boolean evict(Selector selector) {
+        Map<InetAddress, Integer> counts = new HashMap<>();
+        InetAddress busiest = null;
+        for (SelectionKey key : selector.keys()) {
+            if(!key.isValid() || !(key.attachment() instanceof Pending)) continue;
+            InetAddress address = ((Pending) key.attachment()).address;
+            Integer count = counts.get(address);
+            count = count == null ? 1 : count + 1;
+            counts.put(address, count);
+            if(busiest == null || count > counts.get(busiest)) busiest = address;
+        }
+        SelectionKey oldest = null;
+        for (SelectionKey key : selector.keys()) {
+            if(!key.isValid() || !(key.attachment() instanceof Pending)) continue;
+            Pending client = (Pending) key.attachment();
+            if(client.address == null ? busiest != null : !client.address.equals(busiest)) continue;
+            if(oldest == null || client.acceptNanos < ((Pending) oldest.attachment()).acceptNanos) oldest = key;
+        }
+        if(oldest == null) return false;
+        Log.w(TAG, "too many pending handshakes, evict " + busiest);
+        oldest.cancel();
+        close(((Pending) oldest.attachment()).channel);
+        return true;
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private final class Pending {
+        final SocketChannel channel;
+        final InetAddress address;
+        final long acceptNanos = System.nanoTime();
+        final byte[] data = new byte[MAX_HANDSHAKE_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        int count = 0;
+
+        Pending(SocketChannel channel) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress();
+        }
+
+        /** Reads what is available, 1 when complete, 0 when more is needed, -1 on error. */
+        int read() {
+            try {
+                while (true) {
+                    int length = mListener.getHandshakeLength(data, count);
+                    if(length < 0 || length > data.length) return -1;
+                    if(count >= length) return 1;
+                    ((Buffer) buffer).limit(length);
+                    ((Buffer) buffer).position(count);
+                    int read = channel.read(buffer);
+                    if(read < 0) return -1;
+                    if(read == 0) return 0;
+                    count += read;
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+    }
+}
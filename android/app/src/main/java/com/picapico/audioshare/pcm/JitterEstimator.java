@@ -0,0 +1,89 @@
+package com.picapico.audioshare.pcm;
+
+import com.picapico.audioshare.metrics.Metrics;
+
+/**
+ * Estimates network jitter from frame arrival times against the media duration of
+ * the frames (RFC 3550 style smoothing) and derives the playout depth to keep queued.
+ * The target grows immediately with the jitter and shrinks slowly once the link calms down.
+ * When frames carry sender timestamps the spacing comes from them instead, which also
+ * gives the queuing delay above the lowest transit time seen.
+ */
+public class JitterEstimator {
+    private static final double JITTER_MULTIPLIER = 4;
+    private static final double SHRINK_FACTOR = 1.0 / 64;
+    private final double bytesPerNano;
+    private final double minDepthNanos;
+    private final double maxDepthNanos;
+    private long lastArrivalNanos = 0;
+    private int lastFrameBytes = 0;
+    private long lastSenderNanos = -1;
+    private long minTransitNanos = Long.MAX_VALUE;
+    private double jitterNanos = 0;
+    private double depthNanos;
+    private volatile int targetBytes;
+    private volatile int jitterMicros;
+    private volatile int delayMicros;
+
+    public JitterEstimator(int bytesPerSecond, int minDepthMillis, int maxDepthMillis) {
+        bytesPerNano = bytesPerSecond / 1e9;
+        minDepthNanos = minDepthMillis * 1e6;
+        maxDepthNanos = Math.max(minDepthNanos, maxDepthMillis * 1e6);
+        depthNanos = minDepthNanos;
+        targetBytes = (int) (depthNanos * bytesPerNano);
+    }
+
+    /** Producer side, called once per received frame. */
+    public void onFrame(long arrivalNanos, int frameBytes) {
+        update(arrivalNanos, lastFrameBytes / bytesPerNano);
+        lastFrameBytes = frameBytes;
+    }
+
+    /** Producer side, for frames stamped by the sender clock. */
+    public void onFrame(long arrivalNanos, int frameBytes, long senderNanos) {
+        double expected = lastSenderNanos < 0 ? lastFrameBytes / bytesPerNano : senderNanos - lastSenderNanos;
+        update(arrivalNanos, expected);
+        long transit = arrivalNanos - senderNanos;
+        if(lastSenderNanos < 0 || senderNanos < lastSenderNanos) minTransitNanos = Long.MAX_VALUE;
+        minTransitNanos = Math.min(minTransitNanos, transit);
+        delayMicros = (int) ((transit - minTransitNanos) / 1000);
+        lastSenderNanos = senderNanos;
+        lastFrameBytes = frameBytes;
+    }
+
+    /** Forgets the last arrival, so a pause in sending is not taken for jitter. */
+    public void restart() {
+        lastArrivalNanos = 0;
+        lastSenderNanos = -1;
+    }
+
+    private void update(long arrivalNanos, double expected) {
+        if(lastArrivalNanos > 0) {
+            double deviation = Math.abs((arrivalNanos - lastArrivalNanos) - expected);
+            jitterNanos += (deviation - jitterNanos) / 16;
+            jitterMicros = (int) (jitterNanos / 1000);
+            Metrics.PCM_JITTER.record((long) (deviation / 1000));
+        }
+        lastArrivalNanos = arrivalNanos;
+        double depth = Math.max(minDepthNanos, Math.min(maxDepthNanos, jitterNanos * JITTER_MULTIPLIER));
+        if(depth > depthNanos) {
+            depthNanos = depth;
+        }else {
+            depthNanos += (depth - depthNanos) * SHRINK_FACTOR;
+        }
+        targetBytes = (int) (depthNanos * bytesPerNano);
+    }
+
+    public int getTargetBytes() {
+        return targetBytes;
+    }
+
+    public int getJitterMicros() {
+        return jitterMicros;
+    }
+
+    /** Queuing delay of the last stamped frame above the fastest one, 0 without timestamps. */
+    public int getDelayMicros() {
+        return delayMicros;
+    }
+}
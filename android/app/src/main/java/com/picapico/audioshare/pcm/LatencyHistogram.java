@@ -0,0 +1,73 @@
+package com.picapico.audioshare.pcm;
+
+import com.picapico.audioshare.metrics.Histogram;
+
+/**
+ * Rolling histogram of end-to-end latency with one millisecond buckets up to a second and one
+ * overflow bucket, kept as two {@link Histogram} windows. Samples go into the current window,
+ * which becomes the previous one once it is older than the window length; percentiles cover
+ * both, so they follow changes within one to two windows while never being computed from just
+ * a handful of samples. Windows also rotate when read, so once probes stop the percentiles
+ * age out instead of repeating the last values.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS = new long[1000];
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            BOUNDS[i] = (i + 1) * 1000L;
+        }
+    }
+    private static final long WINDOW_NANOS = 10_000_000_000L;
+    private Histogram current = newWindow();
+    private Histogram previous = newWindow();
+    private long windowStartNanos = System.nanoTime();
+    private long total = 0;
+    private long minMicros = Long.MAX_VALUE;
+    private long maxMicros = Long.MIN_VALUE;
+    private volatile long lastMicros = 0;
+
+    private static Histogram newWindow() {
+        return new Histogram("audioshare_pcm_latency_microseconds", "End-to-end latency of one stream", BOUNDS);
+    }
+
+    public synchronized void record(long micros) {
+        rotate(System.nanoTime());
+        current.record(Math.max(0, micros));
+        total++;
+        minMicros = Math.min(minMicros, micros);
+        maxMicros = Math.max(maxMicros, micros);
+        lastMicros = micros;
+    }
+
+    private void rotate(long now) {
+        long elapsed = now - windowStartNanos;
+        if(elapsed <= WINDOW_NANOS) return;
+        previous = elapsed > 2 * WINDOW_NANOS ? newWindow() : current;
+        current = newWindow();
+        windowStartNanos = now;
+    }
+
+    /** Samples recorded since the session started. */
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    public long getLastMicros() {
+        return lastMicros;
+    }
+
+    public synchronized long getMinMicros() {
+        return total == 0 ? 0 : minMicros;
+    }
+
+    public synchronized long getMaxMicros() {
+        return total == 0 ? 0 : maxMicros;
+    }
+
+    /** Upper edge of the bucket holding the percentile over the last windows, -1 without recent samples. */
+    public synchronized long getPercentileMicros(double percentile) {
+        rotate(System.nanoTime());
+        long micros = Histogram.getPercentile(percentile, current, previous);
+        return micros == Long.MAX_VALUE ? maxMicros : micros;
+    }
+}
@@ -0,0 +1,151 @@
+package com.picapico.audioshare.pcm;
+
+import com.picapico.audioshare.metrics.Metrics;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pre-allocated single-producer/single-consumer ring of PCM chunks held in direct buffers.
+ * When the ring is full the producer drops the oldest chunk, so the consumer
+ * copies a slot out first and only keeps it if it still owns the tail afterwards.
+ */
+public class PcmRingBuffer {
+    private final ByteBuffer[] slots;
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    private final long[] starts;
+    private final int slotSize;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private final AtomicLong removedBytes = new AtomicLong();
+    private volatile long publishedBytes = 0;
+    private long polledStart = 0;
+
+    public PcmRingBuffer(int capacity, int slotSize) {
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        slots = new ByteBuffer[capacity];
+        views = new ByteBuffer[capacity];
+        lengths = new int[capacity];
+        starts = new long[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+            views[i] = slots[i].duplicate();
+        }
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** Bytes published since creation, the stream position of the next byte written. */
+    public long getPublishedBytes() {
+        return publishedBytes;
+    }
+
+    /** Bytes that left the ring, either polled or dropped, the stream position of the oldest queued byte. */
+    public long getRemovedBytes() {
+        return removedBytes.get();
+    }
+
+    /** Producer side, returns the cleared head slot to fill, dropping the oldest chunk if the ring is full. */
+    public ByteBuffer claim() {
+        long h = head.get();
+        long t = tail.get();
+        if(h - t >= capacity && tail.compareAndSet(t, t + 1)) {
+            int count = lengths[(int) (t % capacity)];
+            dropped.incrementAndGet();
+            Metrics.PCM_DROPS.increment();
+            queuedBytes.addAndGet(-count);
+            removedBytes.addAndGet(count);
+        }
+        ByteBuffer slot = slots[(int) (h % capacity)];
+        ((Buffer) slot).clear();
+        return slot;
+    }
+
+    /** Producer side, makes the bytes written into the claimed slot visible to the consumer. */
+    public void publish() {
+        long h = head.get();
+        int index = (int) (h % capacity);
+        int count = slots[index].position();
+        lengths[index] = count;
+        starts[index] = publishedBytes;
+        queuedBytes.addAndGet(count);
+        publishedBytes += count;
+        head.lazySet(h + 1);
+    }
+
+    /** Producer side, copies the remaining bytes of source into as many slots as needed. */
+    public void offer(ByteBuffer source) {
+        while (source.hasRemaining()) {
+            ByteBuffer slot = claim();
+            int count = Math.min(source.remaining(), slot.capacity());
+            int limit = source.limit();
+            ((Buffer) source).limit(source.position() + count);
+            slot.put(source);
+            ((Buffer) source).limit(limit);
+            publish();
+        }
+    }
+
+    /** Consumer side, stream position of the first byte of the chunk polled last. */
+    public long getPolledStart() {
+        return polledStart;
+    }
+
+    /** Consumer side, copies the oldest chunk into target (flipped) and returns its length, 0 when empty. */
+    public int poll(ByteBuffer target) {
+        ((Buffer) target).clear();
+        int count = pollAfter(target);
+        ((Buffer) target).flip();
+        return count;
+    }
+
+    /**
+     * Consumer side, appends the oldest chunk at the position of target, which stays in write mode,
+     * and returns its length, 0 when empty. Target needs room for a whole slot.
+     */
+    public int pollAfter(ByteBuffer target) {
+        int position = target.position();
+        while (true) {
+            long t = tail.get();
+            if(t >= head.get()) return 0;
+            int index = (int) (t % capacity);
+            int count = lengths[index];
+            long start = starts[index];
+            ByteBuffer view = views[index];
+            ((Buffer) view).limit(count);
+            ((Buffer) view).position(0);
+            ((Buffer) target).position(position);
+            target.put(view);
+            if(tail.compareAndSet(t, t + 1)) {
+                polledStart = start;
+                queuedBytes.addAndGet(-count);
+                removedBytes.addAndGet(count);
+                return count;
+            }
+        }
+    }
+}
@@ -0,0 +1,496 @@
+package com.picapico.audioshare.pcm;
+
+import com.picapico.audioshare.metrics.Metrics;
+import com.picapico.audioshare.musiche.player.AudioPlayer;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Playout side of one incoming PCM stream feeding the {@link PcmWriter} mixer.
+ * It waits for the depth asked by its {@link JitterEstimator}, converts channels and
+ * sample rate to the mixer format, applies the stream gain, conceals missing data by
+ * repeating the last period while fading to silence, and trims queued audio when the
+ * ring stays well above the target for too long.
+ * <p>
+ * Samples are carried as 24-bit integers whatever the wire format, so 24-bit and float
+ * streams keep their resolution up to the mixer output.
+ * <p>
+ * Sender and DAC clocks drift apart by a few ppm, so the resampling ratio is nudged by a
+ * slow PI controller holding the smoothed ring fill on the jitter target. Samples are
+ * interpolated with a 4-point Catmull-Rom spline, which stays clean for small ratio changes.
+ * <p>
+ * When the sender stamps frames with presentation times and a {@link ClockSync} is known, the
+ * source starts on the exact frame due at the mixer's presentation time, padding silence or
+ * skipping input as needed, and the same controller then holds the presentation error at zero
+ * instead of the ring fill, so every receiver of the sender plays in step.
+ * <p>
+ * A receiver can keep only one channel of a stereo stream, which lets a single multicast
+ * stream feed both speakers of a pair; the selection is the {@link AudioPlayer.ChannelType} of the
+ * musiche player, so both play the same channel setting.
+ * <p>
+ * Frames the sender marks as latency probes are followed to the mixer output, the time from
+ * their capture to the speaker goes into a {@link LatencyHistogram}.
+ */
+public class PcmSource {
+    private static final long TRIM_AFTER_NANOS = 1_000_000_000L;
+    private static final int FADE_PERIODS = 3;
+    private static final double FILL_SMOOTHING = 0.01;
+    private static final double DRIFT_PROPORTIONAL = 20e-6;
+    private static final double DRIFT_INTEGRAL = 0.05e-6;
+    private static final double MAX_DRIFT = 1000e-6;
+    private static final double SYNC_PROPORTIONAL = 0.1;
+    private static final double SYNC_INTEGRAL = 0.001;
+    private static final long MAX_LEAD_NANOS = 50_000_000L;
+    private static final long RESYNC_NANOS = 50_000_000L;
+    private static final long REANCHOR_MICROS = 100;
+    private final PcmRingBuffer mBuffer;
+    private final JitterEstimator mJitter;
+    private final ByteBuffer mChunk;
+    private long chunkEnd = 0;
+    private final int inChannels;
+    private final int inFormat;
+    private final int outChannels;
+    private final int inFrameBytes;
+    private final int outSampleRate;
+    private final double inBytesPerNano;
+    private final double baseStep;
+    private double step;
+    private double fillAverage = -1;
+    private double driftIntegral = 0;
+    private volatile int driftPpm = 0;
+    private final long mMaxConcealFrames;
+    private int[] history0;
+    private int[] history1;
+    private int[] history2;
+    private int[] history3;
+    private int[] lastPeriod = new int[0];
+    private double phase = 1;
+    private boolean primed = false;
+    private int concealIndex = 0;
+    private long concealFrames = 0;
+    private float fadeInFrom = 1;
+    private boolean fadeOut = false;
+    private long aboveSinceNanos = 0;
+    private volatile float gain = 1;
+    private volatile int[] channelMap;
+    private volatile boolean downmix;
+    private volatile boolean muted = false;
+    private volatile long concealed = 0;
+    private volatile long firstPresentNanos = 0;
+    private volatile long trimmed = 0;
+    private volatile ClockSync mClock;
+    private volatile Presentation mPresentation;
+    private volatile Presentation mProbe;
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final GlitchStats mGlitches = new GlitchStats();
+    private long lastDropped = 0;
+    private long leadFrames = 0;
+    private double syncIntegral = 0;
+    private volatile int syncErrorMicros = 0;
+
+    public PcmSource(PcmRingBuffer buffer, JitterEstimator jitter, int sampleRate, int channels,
+                     int sampleFormat, int outSampleRate, int outChannels) {
+        mBuffer = buffer;
+        mJitter = jitter;
+        inChannels = channels;
+        inFormat = sampleFormat;
+        this.outChannels = outChannels;
+        inFrameBytes = channels * StreamOptions.getBytesPerSample(sampleFormat);
+        mChunk = ByteBuffer.allocateDirect(buffer.getSlotSize() + inFrameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer) mChunk).limit(0);
+        this.outSampleRate = outSampleRate;
+        inBytesPerNano = (double) sampleRate * inFrameBytes / 1e9;
+        baseStep = (double) sampleRate / outSampleRate;
+        step = baseStep;
+        mMaxConcealFrames = outSampleRate / 2;
+        setChannelSelection(AudioPlayer.ChannelTypeStereo);
+        history0 = new int[channels];
+        history1 = new int[channels];
+        history2 = new int[channels];
+        history3 = new int[channels];
+    }
+
+    public void setGain(float gain) {
+        this.gain = gain;
+    }
+
+    /** Picks the input channel every output channel plays, or mutes the stream. */
+    public void setChannelSelection(@AudioPlayer.ChannelType int selection) {
+        int[] map = new int[outChannels];
+        boolean single = (selection == AudioPlayer.ChannelTypeLeft || selection == AudioPlayer.ChannelTypeRight) && inChannels > 1;
+        for (int channel = 0; channel < outChannels; channel++) {
+            map[channel] = single ? (selection == AudioPlayer.ChannelTypeLeft ? 0 : 1) : Math.min(channel, inChannels - 1);
+        }
+        channelMap = map;
+        downmix = !single && outChannels == 1 && inChannels > 1;
+        muted = selection == AudioPlayer.ChannelTypeNone;
+    }
+
+    public PcmRingBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    /** Concealed periods, only the mixer thread updates it. */
+    public long getConcealed() {
+        return concealed;
+    }
+
+    /** Chunks dropped to bring latency back to the target, only the mixer thread updates it. */
+    public long getTrimmed() {
+        return trimmed;
+    }
+
+    /** Current clock drift correction applied to the resampling ratio. */
+    public int getDriftPpm() {
+        return driftPpm;
+    }
+
+    /** Sender clock used to place presentation times, shared by the streams of one sender. */
+    public void setClock(ClockSync clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Producer side, the byte at streamBytes of the ring should be heard at senderMicros.
+     * The anchor is only replaced when the stream stopped following it, so steady playback
+     * does not allocate.
+     */
+    public void setPresentation(long streamBytes, long senderMicros) {
+        Presentation presentation = mPresentation;
+        if(presentation != null) {
+            long predicted = presentation.senderMicros +
+                    (long) ((streamBytes - presentation.streamBytes) / inBytesPerNano / 1000);
+            if(Math.abs(predicted - senderMicros) < REANCHOR_MICROS) return;
+        }
+        mPresentation = new Presentation(streamBytes, senderMicros);
+    }
+
+    /**
+     * Producer side, marks the frame starting at streamBytes as captured at senderMicros on the
+     * sender clock. Once the mixer plays it, the time from capture to speaker is recorded in
+     * {@link #getLatency()}. A newer probe replaces one not played yet.
+     */
+    public void setProbe(long streamBytes, long senderMicros) {
+        mProbe = new Presentation(streamBytes, senderMicros);
+    }
+
+    public LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    /** Glitches of this stream, shared with the receiver and the writer. */
+    public GlitchStats getGlitches() {
+        return mGlitches;
+    }
+
+    int getJitterMicros() {
+        return mJitter.getJitterMicros();
+    }
+
+    /** Local time the first stream sample was heard at, 0 until it was mixed. */
+    public long getFirstPresentNanos() {
+        return firstPresentNanos;
+    }
+
+    /** Last measured distance from the presentation time, positive when playing late. */
+    public int getSyncErrorMicros() {
+        return syncErrorMicros;
+    }
+
+    private boolean isSynchronized() {
+        ClockSync clock = mClock;
+        return mPresentation != null && clock != null && clock.isSynced();
+    }
+
+    /** Local time the frame currently leaving the interpolator is due at. */
+    private long outputPresentationNanos() {
+        Presentation presentation = mPresentation;
+        double head = mBuffer.getRemovedBytes() - mChunk.remaining();
+        double position = head + (phase - 3) * inFrameBytes;
+        return mClock.toLocalNanos(presentation.senderMicros) +
+                (long) ((position - presentation.streamBytes) / inBytesPerNano);
+    }
+
+    /** Mixer side, starts playout once the ring reached the target depth or the presentation time came. */
+    boolean isPrimed(long presentNanos) {
+        if(!primed) {
+            if(isSynchronized()) {
+                primed = alignPresentation(presentNanos);
+            }else {
+                long queued = mBuffer.getQueuedBytes();
+                primed = queued > 0 && queued >= mJitter.getTargetBytes();
+            }
+        }
+        return primed;
+    }
+
+    /** Skips input that is already late, or pads the start with silence when it is due soon. */
+    private boolean alignPresentation(long presentNanos) {
+        long error = presentNanos - outputPresentationNanos();
+        if(error < -MAX_LEAD_NANOS) return false;
+        if(error < 0) {
+            leadFrames = -error * outSampleRate / 1_000_000_000L;
+            syncIntegral = 0;
+            return true;
+        }
+        long skip = (long) (error * inBytesPerNano) / inFrameBytes * inFrameBytes;
+        while (skip > 0) {
+            if(!mChunk.hasRemaining() && !fillChunk(1)) {
+                return false;
+            }
+            int count = (int) Math.min(skip, mChunk.remaining());
+            ((Buffer) mChunk).position(mChunk.position() + count);
+            skip -= count;
+        }
+        leadFrames = 0;
+        syncIntegral = 0;
+        return mChunk.hasRemaining() || mBuffer.getQueuedBytes() > 0;
+    }
+
+    /** Mixer side, whether input is queued that waits for the target depth or its presentation time. */
+    boolean isPriming() {
+        return !primed && mBuffer.getQueuedBytes() > 0;
+    }
+
+    /** Mixer side, whether a whole period of input is queued. */
+    boolean hasPeriod(int frames) {
+        long needed = (long) Math.ceil(frames * step) * inFrameBytes;
+        return mChunk.remaining() + mBuffer.getQueuedBytes() >= needed;
+    }
+
+    /** Mixer side, adds one period of this stream to the accumulator, its first frame is heard at presentNanos. */
+    void mix(int[] accumulator, int frames, long now, long presentNanos) {
+        int samples = frames * outChannels;
+        if(lastPeriod.length < samples) lastPeriod = new int[samples];
+        long dropped = mBuffer.getDropped();
+        if(dropped != lastDropped) {
+            mGlitches.record(GlitchStats.RING_DROP, dropped - lastDropped);
+            lastDropped = dropped;
+        }
+        boolean synced = isSynchronized();
+        long syncError = synced && leadFrames == 0 ? presentNanos - outputPresentationNanos() : 0;
+        int lead = (int) Math.min(leadFrames, frames);
+        int produced = lead;
+        leadFrames -= lead;
+        Arrays.fill(lastPeriod, 0, lead * outChannels, 0);
+        while (produced < frames && nextFrame(lastPeriod, produced * outChannels)) {
+            produced++;
+        }
+        if(firstPresentNanos == 0 && produced > lead) {
+            firstPresentNanos = presentNanos + lead * 1_000_000_000L / outSampleRate;
+        }
+        if(mProbe != null && produced > lead) measureProbe(presentNanos + produced * 1_000_000_000L / outSampleRate);
+        float volume = muted ? 0 : gain;
+        if(produced > 0) {
+            if(concealIndex > 0) {
+                fadeInFrom = fadeGain(concealIndex);
+                concealIndex = 0;
+                concealFrames = 0;
+            }
+            float from = fadeInFrom;
+            float to = fadeOut ? 0 : 1;
+            addRamp(accumulator, lastPeriod, 0, produced * outChannels, volume * from, volume * to);
+            fadeInFrom = 1;
+            if(fadeOut) {
+                fadeOut = false;
+                fadeInFrom = 0;
+                ((Buffer) mChunk).limit(0);
+                if(mBuffer.poll(mChunk) > 0) {
+                    trimmed++;
+                    mGlitches.record(GlitchStats.TRIMMED);
+                }
+                ((Buffer) mChunk).limit(0);
+            }
+        }
+        if(produced < frames) {
+            if(concealFrames >= mMaxConcealFrames) {
+                primed = false;
+                return;
+            }
+            float from = fadeGain(concealIndex);
+            float to = fadeGain(concealIndex + 1);
+            addRamp(accumulator, lastPeriod, produced * outChannels, samples, volume * from, volume * to);
+            concealIndex++;
+            concealFrames += frames - produced;
+            concealed++;
+            mGlitches.record(GlitchStats.STARVED);
+            Metrics.PCM_CONCEALED.increment();
+            return;
+        }
+        if(synced) {
+            updateSync(syncError);
+            return;
+        }
+        long queued = mBuffer.getQueuedBytes();
+        updateDrift(queued, mJitter.getTargetBytes(), frames);
+        if(queued > mJitter.getTargetBytes() * 2L) {
+            if(aboveSinceNanos == 0) {
+                aboveSinceNanos = now;
+            }else if(now - aboveSinceNanos > TRIM_AFTER_NANOS) {
+                fadeOut = true;
+                aboveSinceNanos = 0;
+            }
+        }else {
+            aboveSinceNanos = 0;
+        }
+    }
+
+    /** Mixer side, records the latency of the probe once the input consumed so far, heard at endNanos, passed it. */
+    private void measureProbe(long endNanos) {
+        Presentation probe = mProbe;
+        double head = mBuffer.getRemovedBytes() - mChunk.remaining() + (phase - 3) * inFrameBytes;
+        if(head < probe.streamBytes) return;
+        mProbe = null;
+        ClockSync clock = mClock;
+        if(clock == null || !clock.isSynced()) return;
+        long heardNanos = endNanos - (long) ((head - probe.streamBytes) / inBytesPerNano);
+        mLatency.record((heardNanos - clock.toLocalNanos(probe.senderMicros)) / 1000);
+    }
+
+    /** Consumes input a little faster while the ring sits above its target and slower below it. */
+    private void updateDrift(long queued, int target, int frames) {
+        if(fillAverage < 0) {
+            fillAverage = queued;
+            return;
+        }
+        fillAverage += (queued - fillAverage) * FILL_SMOOTHING;
+        double scale = Math.max(target, frames * baseStep * inFrameBytes);
+        double error = (fillAverage - target) / scale;
+        driftIntegral = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, driftIntegral + error * DRIFT_INTEGRAL));
+        double drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, driftIntegral + error * DRIFT_PROPORTIONAL));
+        step = baseStep * (1 + drift);
+        driftPpm = (int) (drift * 1e6);
+    }
+
+    /** Steers the resampling ratio towards the presentation times, realigning when too far off. */
+    private void updateSync(long errorNanos) {
+        syncErrorMicros = (int) (errorNanos / 1000);
+        if(Math.abs(errorNanos) > RESYNC_NANOS) {
+            primed = false;
+            return;
+        }
+        double error = errorNanos / 1e9;
+        syncIntegral = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, syncIntegral + error * SYNC_INTEGRAL));
+        double drift = Math.max(-MAX_DRIFT, Math.min(MAX_DRIFT, syncIntegral + error * SYNC_PROPORTIONAL));
+        step = baseStep * (1 + drift);
+        driftPpm = (int) (drift * 1e6);
+    }
+
+        /** Produces one output frame into target, false when the input ran dry. */
+    private boolean nextFrame(int[] target, int offset) {
+        while (phase >= 1) {
+            if(!readInputFrame(history0)) return false;
+            int[] swap = history0;
+            history0 = history1;
+            history1 = history2;
+            history2 = history3;
+            history3 = swap;
+            phase -= 1;
+        }
+        double fraction = phase;
+        if(downmix) {
+            int sum = 0;
+            for (int channel = 0; channel < inChannels; channel++) {
+                sum += interpolate(channel, fraction);
+            }
+            target[offset] = sum / inChannels;
+        }else {
+            int[] map = channelMap;
+            for (int channel = 0; channel < outChannels; channel++) {
+                target[offset + channel] = interpolate(map[channel], fraction);
+            }
+        }
+        phase += step;
+        return true;
+    }
+
+    /** Catmull-Rom interpolation between history1 and history2. */
+    private int interpolate(int channel, double fraction) {
+        double y0 = history0[channel];
+        double y1 = history1[channel];
+        double y2 = history2[channel];
+        double y3 = history3[channel];
+        double c1 = 0.5 * (y2 - y0);
+        double c2 = y0 - 2.5 * y1 + 2 * y2 - 0.5 * y3;
+        double c3 = 0.5 * (y3 - y0) + 1.5 * (y1 - y2);
+        return (int) (((c3 * fraction + c2) * fraction + c1) * fraction + y1);
+    }
+
+    /**
+     * Appends queued chunks until at least the given bytes are available. Chunks need not hold
+     * whole frames, so the start of a frame cut at the end of a chunk is kept; when chunks were
+     * dropped or trimmed in between it is discarded instead and reading resumes at the next frame
+     * boundary of the stream.
+     */
+    private boolean fillChunk(int bytes) {
+        while (mChunk.remaining() < bytes) {
+            long end = chunkEnd;
+            mChunk.compact();
+            int count = mBuffer.pollAfter(mChunk);
+            ((Buffer) mChunk).flip();
+            if(count == 0) return false;
+            long start = mBuffer.getPolledStart();
+            chunkEnd = start + count;
+            if(start == end) continue;
+            int skip = mChunk.remaining() - count;
+            int offset = (int) (start % inFrameBytes);
+            if(offset != 0) skip += inFrameBytes - offset;
+            ((Buffer) mChunk).position(Math.min(mChunk.limit(), skip));
+        }
+        return true;
+    }
+
+    private boolean readInputFrame(int[] frame) {
+        if(mChunk.remaining() < inFrameBytes && !fillChunk(inFrameBytes)) {
+            return false;
+        }
+        ByteBuffer chunk = mChunk;
+        switch (inFormat) {
+            case StreamOptions.FORMAT_PCM_24_PACKED:
+                for (int channel = 0; channel < inChannels; channel++) {
+                    int low = chunk.getShort() & 0xFFFF;
+                    frame[channel] = (chunk.get() << 16) | low;
+                }
+                break;
+            case StreamOptions.FORMAT_PCM_FLOAT:
+                for (int channel = 0; channel < inChannels; channel++) {
+                    frame[channel] = (int) (chunk.getFloat() * PcmWriter.FULL_SCALE);
+                }
+                break;
+            default:
+                for (int channel = 0; channel < inChannels; channel++) {
+                    frame[channel] = chunk.getShort() << 8;
+                }
+                break;
+        }
+        return true;
+    }
+
+    private static float fadeGain(int period) {
+        return Math.max(0, 1 - (float) period / FADE_PERIODS);
+    }
+
+    private static void addRamp(int[] accumulator, int[] samples, int start, int end, float from, float to) {
+        int count = end - start;
+        if(count <= 0) return;
+        float step = (to - from) / count;
+        float value = from;
+        for (int i = start; i < end; i++) {
+            accumulator[i] += (int) (samples[i] * value);
+            value += step;
+        }
+    }
+
+    private static final class Presentation {
+        final long streamBytes;
+        final long senderMicros;
+
+        Presentation(long streamBytes, long senderMicros) {
+            this.streamBytes = streamBytes;
+            this.senderMicros = senderMicros;
+        }
+    }
+}
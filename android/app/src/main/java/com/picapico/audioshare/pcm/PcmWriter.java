@@ -0,0 +1,330 @@
+package com.picapico.audioshare.pcm;
+
+import android.media.AudioFormat;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Dedicated thread mixing every attached {@link PcmSource} into the single output
+ * {@link AudioTrack}. A period is written as soon as one stream has it queued; streams
+ * still short of data get until the concealment deadline before they are concealed.
+ * Sources are mixed at 24-bit scale and the sum is saturated, then written as 16-bit
+ * or float depending on the track encoding.
+ * Each period is mixed knowing when its first frame will be heard, derived from the track
+ * timestamp, so synchronized sources can line up with their presentation times.
+ * Once the output stayed silent for the idle delay the track is paused and periods are mixed
+ * and dropped at the real-time pace, the first period with sound restarts the track. With no
+ * input the thread parks until a producer calls {@link #signal()}.
+ */
+public class PcmWriter implements Runnable {
+    private static final String TAG = "AudioSharePcmWriter";
+    private static final long IDLE_WAIT_NANOS = 1_000_000_000L;
+    private static final long TIMESTAMP_REFRESH_NANOS = 250_000_000L;
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    static final int FULL_SCALE = 1 << 23;
+    private static final int MAX_SAMPLE = FULL_SCALE - 1;
+    private static final int MIN_SAMPLE = -FULL_SCALE;
+    private static final int SILENCE_PEAK = 1 << 8;
+    private final AudioTrack mAudioTrack;
+    private final int mSampleRate;
+    private final int mChannels;
+    private final int mEncoding;
+    private final int mPeriodFrames;
+    private final int mBufferFrames;
+    private final long mConcealDelayNanos;
+    private final Object mSourcesLock = new Object();
+    private volatile PcmSource[] mSources = new PcmSource[0];
+    private volatile boolean running = false;
+    private volatile long framesWritten = 0;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private boolean hasTimestamp = false;
+    private long timestampRefreshNanos = 0;
+    private volatile Thread mThread;
+    private volatile TrackBufferController mBufferController = null;
+    private volatile long mIdleAfterNanos = 0;
+    private volatile IdleListener mIdleListener = null;
+    private volatile boolean idle = false;
+    private long lastSoundNanos = 0;
+
+    public interface IdleListener {
+        /** Called on the writer thread when the track was paused for silence or restarted. */
+        void onIdleChanged(boolean idle);
+    }
+
+    public PcmWriter(AudioTrack audioTrack, int sampleRate, int channels, int encoding, int trackBufferSize) {
+        mAudioTrack = audioTrack;
+        mSampleRate = sampleRate;
+        mChannels = channels;
+        mEncoding = encoding;
+        int trackFrames = trackBufferSize / (channels * getBytesPerSample(encoding));
+        mBufferFrames = trackFrames;
+        mPeriodFrames = Math.max(64, trackFrames / 4);
+        mConcealDelayNanos = trackFrames * 1_000_000_000L / sampleRate / 2;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannels() {
+        return mChannels;
+    }
+
+    public int getEncoding() {
+        return mEncoding;
+    }
+
+    /** Frames of the track buffer in use, follows the {@link TrackBufferController} when there is one. */
+    public int getBufferFrames() {
+        TrackBufferController controller = mBufferController;
+        return controller == null ? mBufferFrames : controller.getBufferFrames();
+    }
+
+    public int getPeriodFrames() {
+        return mPeriodFrames;
+    }
+
+    public void setBufferController(TrackBufferController controller) {
+        mBufferController = controller;
+    }
+
+    /** Pauses the track after afterMillis of silent output, 0 keeps it playing. */
+    public void setIdle(long afterMillis, IdleListener listener) {
+        mIdleListener = listener;
+        mIdleAfterNanos = afterMillis * 1_000_000L;
+    }
+
+    /** Whether the track is paused for silence. */
+    public boolean isIdle() {
+        return idle;
+    }
+
+    private boolean isIdleDue(long now) {
+        return !idle && mIdleAfterNanos > 0 && now - lastSoundNanos > mIdleAfterNanos;
+    }
+
+    private void setIdleState(boolean idle) {
+        if(idle) {
+            mAudioTrack.pause();
+        }else {
+            mAudioTrack.play();
+        }
+        this.idle = idle;
+        Log.i(TAG, idle ? "output silent, pause track" : "output sound, resume track");
+        IdleListener listener = mIdleListener;
+        if(listener != null) listener.onIdleChanged(idle);
+    }
+
+    /** Frames handed to the track since it was opened. */
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    public boolean getTimestamp(AudioTimestamp timestamp) {
+        return mAudioTrack.getTimestamp(timestamp);
+    }
+
+    public long getPlaybackHeadPosition() {
+        return mAudioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+    }
+
+    /** Underruns reported by the track, -1 before Android N. */
+    public int getUnderrunCount() {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.N) return -1;
+        return mAudioTrack.getUnderrunCount();
+    }
+
+    /** Bytes per sample of a track encoding, the writer outputs 16-bit or float. */
+    public static int getBytesPerSample(int encoding) {
+        return encoding == AudioFormat.ENCODING_PCM_FLOAT ? 4 : 2;
+    }
+
+    public void addSource(PcmSource source) {
+        synchronized (mSourcesLock) {
+            PcmSource[] sources = Arrays.copyOf(mSources, mSources.length + 1);
+            sources[sources.length - 1] = source;
+            mSources = sources;
+        }
+    }
+
+    /** Detaches a source and returns how many are left. */
+    public int removeSource(PcmSource source) {
+        synchronized (mSourcesLock) {
+            PcmSource[] sources = new PcmSource[mSources.length];
+            int count = 0;
+            for (PcmSource item : mSources) {
+                if(item != source) sources[count++] = item;
+            }
+            mSources = Arrays.copyOf(sources, count);
+            return count;
+        }
+    }
+
+    public void start() {
+        running = true;
+        mThread = new Thread(this, TAG);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    /**
+     * Ends the writer thread, pausing the track so a blocking write returns early. Only once this
+     * returned true may the track be handed to anyone else.
+     */
+    public boolean stop() {
+        running = false;
+        Thread thread = mThread;
+        if(thread == null) return true;
+        LockSupport.unpark(thread);
+        try {
+            mAudioTrack.pause();
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException ignored) {
+        }
+        if(thread.isAlive()) return false;
+        mThread = null;
+        return true;
+    }
+
+    /** Called by producers after each frame, wakes the writer if it is parked. */
+    public void signal() {
+        Thread thread = mThread;
+        if(thread != null) LockSupport.unpark(thread);
+    }
+
+    /** Writer side, local time at which the next frame written to the track will be heard. */
+    private long presentationNanos(long now) {
+        if(!hasTimestamp || now - timestampRefreshNanos > TIMESTAMP_REFRESH_NANOS) {
+            hasTimestamp = mAudioTrack.getTimestamp(mTimestamp);
+            timestampRefreshNanos = now;
+        }
+        long played;
+        if(hasTimestamp) {
+            played = mTimestamp.framePosition + (now - mTimestamp.nanoTime) * mSampleRate / 1_000_000_000L;
+        }else {
+            played = getPlaybackHeadPosition();
+        }
+        long pending = Math.max(0, framesWritten - played);
+        return now + pending * 1_000_000_000L / mSampleRate;
+    }
+
+    private static void recordGlitch(PcmSource[] sources, int kind) {
+        for (PcmSource source : sources) {
+            source.getGlitches().record(kind);
+        }
+    }
+
+    /**
+     * How long to wait for input when nothing can be mixed, {@link #signal()} ends the wait early.
+     * A starving stream is waited for until the concealment deadline and a stream still priming is
+     * polled every period, otherwise the wait lasts until the idle delay runs out. While the track is
+     * paused starving streams are not concealed, the writer sleeps until data arrives.
+     */
+    private long getWaitNanos(PcmSource[] sources, boolean starving, long now, long lastWriteNanos, long periodNanos) {
+        if(starving && !idle) return Math.max(0, lastWriteNanos + mConcealDelayNanos - now);
+        for (PcmSource source : sources) {
+            if(source.isPriming()) return periodNanos;
+        }
+        long idleAfterNanos = mIdleAfterNanos;
+        if(idle || idleAfterNanos <= 0) return IDLE_WAIT_NANOS;
+        return Math.max(0, Math.min(IDLE_WAIT_NANOS, lastSoundNanos + idleAfterNanos - now));
+    }
+
+    @Override
+    public void run() {
+        int samples = mPeriodFrames * mChannels;
+        int[] accumulator = new int[samples];
+        boolean floatOutput = mEncoding == AudioFormat.ENCODING_PCM_FLOAT;
+        int outputBytes = samples * getBytesPerSample(mEncoding);
+        ByteBuffer output = ByteBuffer.allocateDirect(outputBytes).order(ByteOrder.nativeOrder());
+        long lastWriteNanos = System.nanoTime();
+        long periodNanos = mPeriodFrames * 1_000_000_000L / mSampleRate;
+        lastSoundNanos = lastWriteNanos;
+        int lastState = AudioTrack.PLAYSTATE_PLAYING;
+        while (running) {
+            PcmSource[] sources = mSources;
+            boolean ready = false;
+            boolean starving = false;
+            long presentNanos = presentationNanos(System.nanoTime());
+            for (PcmSource source : sources) {
+                if(!source.isPrimed(presentNanos)) continue;
+                if(source.hasPeriod(mPeriodFrames)) {
+                    ready = true;
+                }else {
+                    starving = true;
+                }
+            }
+            long now = System.nanoTime();
+            if(!ready && (!starving || idle || now - lastWriteNanos < mConcealDelayNanos)) {
+                if(isIdleDue(now)) setIdleState(true);
+                LockSupport.parkNanos(this, getWaitNanos(sources, starving, now, lastWriteNanos, periodNanos));
+                continue;
+            }
+            Arrays.fill(accumulator, 0);
+            for (PcmSource source : sources) {
+                if(source.isPrimed(presentNanos)) source.mix(accumulator, mPeriodFrames, now, presentNanos);
+            }
+            int peak = 0;
+            if(floatOutput) {
+                for (int i = 0; i < samples; i++) {
+                    int sample = accumulator[i];
+                    sample = sample > MAX_SAMPLE ? MAX_SAMPLE : sample < MIN_SAMPLE ? MIN_SAMPLE : sample;
+                    peak = Math.max(peak, Math.abs(sample));
+                    output.putFloat(i * 4, sample * (1f / FULL_SCALE));
+                }
+            }else {
+                for (int i = 0; i < samples; i++) {
+                    int sample = accumulator[i];
+                    peak = Math.max(peak, Math.abs(sample));
+                    sample = (sample + 0x80) >> 8;
+                    output.putShort(i * 2, (short) (sample > Short.MAX_VALUE ? Short.MAX_VALUE :
+                            sample < Short.MIN_VALUE ? Short.MIN_VALUE : sample));
+                }
+            }
+            if(peak > SILENCE_PEAK) {
+                lastSoundNanos = now;
+                if(idle) setIdleState(false);
+            }else if(idle || isIdleDue(now)) {
+                if(!idle) setIdleState(true);
+                LockSupport.parkNanos(this, periodNanos);
+                lastWriteNanos = System.nanoTime();
+                continue;
+            }
+            ((Buffer) output).clear();
+            int code = mAudioTrack.write(output, outputBytes, AudioTrack.WRITE_BLOCKING);
+            if(code < 0) {
+                Log.e(TAG, "write audio data err: " + code);
+                recordGlitch(sources, GlitchStats.WRITE_ERROR);
+            }else {
+                framesWritten += code / (outputBytes / mPeriodFrames);
+                if(code < outputBytes) recordGlitch(sources, GlitchStats.SHORT_WRITE);
+            }
+            lastWriteNanos = System.nanoTime();
+            TrackBufferController controller = mBufferController;
+            if(controller != null) {
+                int jitterMicros = 0;
+                for (PcmSource source : sources) {
+                    jitterMicros = Math.max(jitterMicros, source.getJitterMicros());
+                }
+                controller.update(lastWriteNanos, jitterMicros);
+            }
+            int state = mAudioTrack.getPlayState();
+            if(state != AudioTrack.PLAYSTATE_PLAYING) {
+                if(state != lastState) Log.w(TAG, "write audio state: " + state);
+                recordGlitch(sources, GlitchStats.NOT_PLAYING);
+            }
+            lastState = state;
+        }
+    }
+}
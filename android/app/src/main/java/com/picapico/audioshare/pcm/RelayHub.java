@@ -0,0 +1,239 @@
+package com.picapico.audioshare.pcm;
+
+import android.util.Log;
+
+import com.picapico.audioshare.pcm.codec.PcmDecoder;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-serves one received stream to downstream receivers, so a tree of speakers costs the sender
+ * a single stream. Subscribers get the extended handshake a sender would write, with the codec
+ * and sample format of the upstream, followed by v1 frames. Each subscriber drains its own
+ * drop-oldest {@link PcmRingBuffer} on a worker of a bounded pool, so a slow hop loses its oldest
+ * audio instead of stalling the upstream read loop, and the bytes held per hop stay bounded.
+ * A second worker per subscriber reads and discards what the downstream sends back, its ready
+ * byte, heartbeats and telemetry, so the hop never stalls on a full receive buffer.
+ */
+public class RelayHub {
+    private static final String TAG = "AudioShareRelay";
+    private static final long IDLE_PARK_NANOS = 50_000_000L;
+    private final byte[] mHead;
+    private final byte mCommand;
+    private final int mQueueBytes;
+    private final int mMaxSubscribers;
+    private final ThreadPoolExecutor mExecutor;
+    private final Object mLock = new Object();
+    private final List<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+    private StreamOptions mOptions = null;
+
+    public RelayHub(byte[] head, byte command, int queueBytes, int maxSubscribers) {
+        mHead = head;
+        mCommand = command;
+        mQueueBytes = queueBytes;
+        mMaxSubscribers = maxSubscribers;
+        mExecutor = new ThreadPoolExecutor(0, maxSubscribers * 2, 30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    }
+
+    public boolean hasSubscribers() {
+        return !mSubscribers.isEmpty();
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Adds a downstream receiver, it starts with the next attached stream if none is relayed now.
+     * The socket is closed when the subscriber limit is reached.
+     */
+    public void addSubscriber(String address, Closeable socket, InputStream input, WritableByteChannel channel) {
+        Subscriber subscriber = new Subscriber(address, socket, input, channel);
+        synchronized (mLock) {
+            if(mSubscribers.size() >= mMaxSubscribers || !subscriber.execute(subscriber::drain)) {
+                Log.w(TAG, "reject relay subscriber " + address);
+                subscriber.close();
+                return;
+            }
+            mSubscribers.add(subscriber);
+            if(mOptions != null) subscriber.start(mOptions);
+        }
+        Log.i(TAG, "relay subscriber " + address + ", total " + mSubscribers.size());
+    }
+
+    /** Makes the stream the relayed one, false when another stream is relayed already. */
+    public boolean attach(StreamOptions options) {
+        synchronized (mLock) {
+            if(mOptions != null) return false;
+            mOptions = options;
+            for (Subscriber subscriber : mSubscribers) {
+                subscriber.start(options);
+            }
+            return true;
+        }
+    }
+
+    /** Ends the relayed stream, subscribers are closed so they reconnect for the next one. */
+    public void detach() {
+        synchronized (mLock) {
+            mOptions = null;
+            for (Subscriber subscriber : mSubscribers) {
+                subscriber.close();
+            }
+            mSubscribers.clear();
+        }
+    }
+
+    /** Queues the remaining bytes of frame for every subscriber without moving its position. */
+    public void forward(ByteBuffer frame) {
+        for (Subscriber subscriber : mSubscribers) {
+            if(!subscriber.offer(frame)) {
+                mSubscribers.remove(subscriber);
+                subscriber.close();
+            }
+        }
+    }
+
+    /** Closes every subscriber and stops the workers. */
+    public void shutdown() {
+        detach();
+        mExecutor.shutdownNow();
+    }
+
+    private void remove(Subscriber subscriber) {
+        mSubscribers.remove(subscriber);
+        subscriber.close();
+    }
+
+    private final class Subscriber implements Runnable {
+        private final String mAddress;
+        private final Closeable mSocket;
+        private final InputStream mInput;
+        private final WritableByteChannel mChannel;
+        private final ByteBuffer mLength = ByteBuffer.allocateDirect(4).order(ByteOrder.LITTLE_ENDIAN);
+        private StreamOptions mOptions;
+        private PcmRingBuffer mQueue;
+        private ByteBuffer mChunk;
+        private volatile Thread mThread;
+        private volatile boolean running = false;
+        private volatile boolean closed = false;
+
+        Subscriber(String address, Closeable socket, InputStream input, WritableByteChannel channel) {
+            mAddress = address;
+            mSocket = socket;
+            mInput = input;
+            mChannel = channel;
+        }
+
+        void start(StreamOptions options) {
+            int slotSize = options.getCodec() == PcmDecoder.CODEC_PCM ? options.getBufferSize() : options.getMaxFrameSize();
+            mOptions = options;
+            mQueue = new PcmRingBuffer(Math.max(2, mQueueBytes / slotSize), slotSize);
+            mChunk = ByteBuffer.allocateDirect(slotSize);
+            running = true;
+            if(!execute(this)) remove(this);
+        }
+
+        boolean execute(Runnable task) {
+            try {
+                mExecutor.execute(task);
+                return true;
+            } catch (RejectedExecutionException e) {
+                return false;
+            }
+        }
+
+        /** Reads and discards what the downstream sends back until it closes. */
+        void drain() {
+            byte[] buffer = new byte[256];
+            try {
+                while (mInput.read(buffer) >= 0) {
+                    if(closed) break;
+                }
+            } catch (IOException ignored) {
+            }
+            if(!closed) Log.i(TAG, "relay subscriber " + mAddress + " closed");
+            remove(this);
+        }
+
+        /** Producer side, false when the subscriber is gone, frames before it started are skipped. */
+        boolean offer(ByteBuffer frame) {
+            if(closed) return false;
+            if(!running) return true;
+            mQueue.offer(frame.duplicate());
+            LockSupport.unpark(mThread);
+            return true;
+        }
+
+        private void writeHead(StreamOptions options) throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(mHead.length + 1 + 4 * 3 + 3 * 8).order(ByteOrder.LITTLE_ENDIAN);
+            head.put(mHead);
+            head.put(mCommand);
+            head.putInt(options.getSampleRate());
+            head.putInt(options.getChannelMask());
+            head.putInt(3);
+            head.putInt(StreamOptions.OPTION_CODEC).putInt(options.getCodec());
+            head.putInt(StreamOptions.OPTION_SAMPLE_FORMAT).putInt(options.getSampleFormat());
+            head.putInt(StreamOptions.OPTION_MAX_FRAME_SIZE).putInt(options.getMaxFrameSize());
+            ((Buffer) head).flip();
+            writeFully(head);
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            if(closed) return;
+            try {
+                writeHead(mOptions);
+                while (running) {
+                    int count = mQueue.poll(mChunk);
+                    if(count == 0) {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                        continue;
+                    }
+                    mLength.putInt(0, count);
+                    ((Buffer) mLength).clear();
+                    writeFully(mLength);
+                    writeFully(mChunk);
+                }
+            } catch (IOException e) {
+                Log.i(TAG, "relay subscriber " + mAddress + " end: " + e);
+            }
+            if(mQueue.getDropped() > 0) {
+                Log.w(TAG, "relay subscriber " + mAddress + " dropped " + mQueue.getDropped());
+            }
+            mThread = null;
+            remove(this);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        }
+
+        void close() {
+            closed = true;
+            running = false;
+            Thread thread = mThread;
+            if(thread != null) LockSupport.unpark(thread);
+            try {
+                mSocket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.picapico.audioshare.pcm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parameters of a PCM stream negotiated at handshake.
+ * Legacy senders (command 1) only send the sample rate and channel mask, extended
+ * senders append key/value options and receive the accepted values with the ready byte.
+ */
+public class StreamOptions {
+    public static final int OPTION_MAX_FRAME_SIZE = 1;
+    public static final int OPTION_CODEC = 2;
+    public static final int OPTION_TRANSPORT = 3;
+    public static final int OPTION_UDP_PORT = 4;
+    public static final int OPTION_GAIN = 5;
+    public static final int OPTION_SAMPLE_FORMAT = 6;
+    public static final int OPTION_TELEMETRY_INTERVAL = 7;
+    public static final int OPTION_MULTICAST_GROUP = 8;
+    public static final int OPTION_RESUME_TOKEN = 9;
+    public static final int OPTION_LATENCY_PROBE = 10;
+    public static final int OPTION_DTX = 11;
+    public static final int FORMAT_PCM_16 = 0;
+    public static final int FORMAT_PCM_24_PACKED = 1;
+    public static final int FORMAT_PCM_FLOAT = 2;
+    public static final int TRANSPORT_TCP = 0;
+    public static final int TRANSPORT_UDP = 1;
+    public static final int TRANSPORT_MULTICAST = 2;
+    public static final int MAX_OPTION_COUNT = 64;
+
+    private final Map<Integer, Integer> mRequested = new HashMap<>();
+    private final Map<Integer, Integer> mAccepted = new LinkedHashMap<>();
+    private final boolean extended;
+    private final int sampleRate;
+    private final int channelMask;
+    private final int frameVersion;
+    private int sampleFormat = FORMAT_PCM_16;
+    private int bufferSize;
+    private int maxFrameSize;
+    private int codec;
+    private int transport = TRANSPORT_TCP;
+    private int telemetryInterval = 0;
+    private int udpPort = 0;
+    private byte[] multicastGroup = null;
+    private int resumeToken = 0;
+    private boolean resumable = false;
+    private boolean latencyProbe = false;
+    private boolean dtx = false;
+    private final long handshakeNanos = System.nanoTime();
+
+    public StreamOptions(int sampleRate, int channelMask, int frameVersion, boolean extended) {
+        this.sampleRate = sampleRate;
+        this.channelMask = channelMask;
+        this.frameVersion = frameVersion;
+        this.extended = extended;
+    }
+
+    /** When the handshake was read, start of the time to first audio. */
+    public long getHandshakeNanos() {
+        return handshakeNanos;
+    }
+
+    public boolean isExtended() {
+        return extended;
+    }
+
+    /** Frame header version announced in the command byte, see {@link FrameHeader}. */
+    public int getFrameVersion() {
+        return frameVersion;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannelMask() {
+        return channelMask;
+    }
+
+    public int getChannelCount() {
+        return Math.max(1, Integer.bitCount(channelMask));
+    }
+
+    public int getSampleFormat() {
+        return sampleFormat;
+    }
+
+    public void setSampleFormat(int sampleFormat) {
+        this.sampleFormat = sampleFormat;
+        accept(OPTION_SAMPLE_FORMAT, sampleFormat);
+    }
+
+    /** Whether the stream carries more than 16 bits of resolution. */
+    public boolean isHighResolution() {
+        return sampleFormat != FORMAT_PCM_16;
+    }
+
+    public int getBytesPerSample() {
+        return getBytesPerSample(sampleFormat);
+    }
+
+    public static boolean isSupportedFormat(int format) {
+        return format == FORMAT_PCM_16 || format == FORMAT_PCM_24_PACKED || format == FORMAT_PCM_FLOAT;
+    }
+
+    public static int getBytesPerSample(int format) {
+        switch (format) {
+            case FORMAT_PCM_24_PACKED:
+                return 3;
+            case FORMAT_PCM_FLOAT:
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    public void setMaxFrameSize(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+        accept(OPTION_MAX_FRAME_SIZE, maxFrameSize);
+    }
+
+    public int getCodec() {
+        return codec;
+    }
+
+    public void setCodec(int codec) {
+        this.codec = codec;
+        accept(OPTION_CODEC, codec);
+    }
+
+    public int getTransport() {
+        return transport;
+    }
+
+    public void setTransport(int transport) {
+        this.transport = transport;
+        accept(OPTION_TRANSPORT, transport);
+    }
+
+    /** Milliseconds between {@link TelemetryReporter} frames, 0 keeps the plain heartbeat. */
+    public int getTelemetryInterval() {
+        return telemetryInterval;
+    }
+
+    public void setTelemetryInterval(int telemetryInterval) {
+        this.telemetryInterval = telemetryInterval;
+        accept(OPTION_TELEMETRY_INTERVAL, telemetryInterval);
+    }
+
+    public int getUdpPort() {
+        return udpPort;
+    }
+
+    public void setUdpPort(int port) {
+        udpPort = port;
+        accept(OPTION_UDP_PORT, port);
+    }
+
+    /** IPv4 group the sender multicasts to, in network byte order. */
+    public byte[] getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    public void setMulticastGroup(int group) {
+        multicastGroup = toAddress(group);
+        accept(OPTION_MULTICAST_GROUP, group);
+    }
+
+    /** The group option carries the four address bytes in network order starting with the low byte. */
+    public static byte[] toAddress(int group) {
+        return new byte[]{(byte) group, (byte) (group >> 8), (byte) (group >> 16), (byte) (group >> 24)};
+    }
+
+    /**
+     * Token of the {@link StreamSession} this stream resumes or starts, 0 when not resumable
+     * or when the sender asked for a new session and no token was generated yet.
+     */
+    public int getResumeToken() {
+        return resumeToken;
+    }
+
+    /** Whether the sender asked for a resumable session, with 0 or an unknown token a new one is started. */
+    public boolean isResumable() {
+        return resumable;
+    }
+
+    public void setResumeToken(int token) {
+        resumeToken = token;
+        resumable = true;
+        accept(OPTION_RESUME_TOKEN, token);
+    }
+
+    /** Whether frames may carry {@link FrameHeader#FLAG_CAPTURE}, needs v2 frames. */
+    public boolean isLatencyProbe() {
+        return latencyProbe;
+    }
+
+    public void setLatencyProbe(boolean enabled) {
+        latencyProbe = enabled;
+        accept(OPTION_LATENCY_PROBE, enabled ? 1 : 0);
+    }
+
+    /** Whether the sender stops sending silence while the receiver reports it is idle. */
+    public boolean isDtx() {
+        return dtx;
+    }
+
+    public void setDtx(boolean enabled) {
+        dtx = enabled;
+        accept(OPTION_DTX, enabled ? 1 : 0);
+    }
+
+    /** Mixing gain of this stream in percent. */
+    public int getGain() {
+        return Math.max(0, Math.min(200, getRequested(OPTION_GAIN, 100)));
+    }
+
+    /** Raw PCM bytes per second of this stream in its sample format. */
+    public int getBytesPerSecond() {
+        return sampleRate * getChannelCount() * getBytesPerSample();
+    }
+
+    public void putRequested(int key, int value) {
+        mRequested.put(key, value);
+    }
+
+    public boolean hasRequested(int key) {
+        return mRequested.containsKey(key);
+    }
+
+    public int getRequested(int key, int defaultValue) {
+        Integer value = mRequested.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public void accept(int key, int value) {
+        mAccepted.put(key, value);
+    }
+
+    /** Ready byte, followed by the accepted options when the sender asked for them. */
+    public void writeReply(OutputStream stream) throws IOException {
+        if(!extended) {
+            stream.write(0);
+            return;
+        }
+        byte[] reply = new byte[1 + 4 + mAccepted.size() * 8];
+        int offset = 1;
+        offset = putInt(reply, offset, mAccepted.size());
+        for (Map.Entry<Integer, Integer> entry : mAccepted.entrySet()) {
+            offset = putInt(reply, offset, entry.getKey());
+            offset = putInt(reply, offset, entry.getValue());
+        }
+        stream.write(reply);
+    }
+
+    private static int putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+        return offset + 4;
+    }
+}
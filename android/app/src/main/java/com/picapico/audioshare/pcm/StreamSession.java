@@ -0,0 +1,96 @@
+package com.picapico.audioshare.pcm;
+
+import com.picapico.audioshare.pcm.codec.PcmDecoder;
+
+import java.io.Closeable;
+
+/**
+ * Receive side state of one stream that outlives its connection. When the socket drops, the
+ * session is parked with its source still in the mixer, which conceals and fades out while the
+ * ring runs dry. A sender reconnecting with the resume token before the grace period ends picks
+ * up the same ring, jitter estimate, decoder and drift state, so the track, the wake lock and
+ * the volume are never touched and playback fades back in once the ring refills.
+ */
+public class StreamSession {
+    private final int token;
+    private final StreamOptions options;
+    private final PcmRingBuffer buffer;
+    private final JitterEstimator jitter;
+    private final PcmSource source;
+    private final PcmDecoder decoder;
+    private volatile String address;
+    private volatile Closeable connection = null;
+    private volatile long parkedNanos = 0;
+
+    public StreamSession(int token, String address, StreamOptions options, PcmRingBuffer buffer,
+                         JitterEstimator jitter, PcmSource source, PcmDecoder decoder) {
+        this.token = token;
+        this.address = address;
+        this.options = options;
+        this.buffer = buffer;
+        this.jitter = jitter;
+        this.source = source;
+        this.decoder = decoder;
+    }
+
+    public int getToken() {
+        return token;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public StreamOptions getOptions() {
+        return options;
+    }
+
+    public PcmRingBuffer getBuffer() {
+        return buffer;
+    }
+
+    public JitterEstimator getJitter() {
+        return jitter;
+    }
+
+    public PcmSource getSource() {
+        return source;
+    }
+
+    public PcmDecoder getDecoder() {
+        return decoder;
+    }
+
+    /** Connection currently feeding the session, null while parked. */
+    public Closeable getConnection() {
+        return connection;
+    }
+
+    public void attach(String address, Closeable connection) {
+        this.address = address;
+        this.connection = connection;
+        parkedNanos = 0;
+    }
+
+    public void park() {
+        connection = null;
+        parkedNanos = System.nanoTime();
+    }
+
+    public boolean isParked() {
+        return parkedNanos != 0;
+    }
+
+    public long getParkedMillis() {
+        return parkedNanos == 0 ? 0 : (System.nanoTime() - parkedNanos) / 1_000_000;
+    }
+
+    /** Whether a stream negotiated as resumed carries the same audio as the parked one. */
+    public boolean isCompatible(StreamOptions resumed) {
+        return resumed.getSampleRate() == options.getSampleRate() &&
+                resumed.getChannelMask() == options.getChannelMask() &&
+                resumed.getSampleFormat() == options.getSampleFormat() &&
+                resumed.getCodec() == options.getCodec() &&
+                resumed.getBufferSize() == options.getBufferSize();
+    }
+}
@@ -0,0 +1,157 @@
+package com.picapico.audioshare.pcm;
+
+import android.media.AudioTimestamp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Back-channel report sent to an extended sender that asked for {@link StreamOptions#OPTION_TELEMETRY_INTERVAL}.
+ * A frame is the type byte {@link #TYPE_TELEMETRY}, a little endian int payload length and the
+ * payload below, so it can not be confused with the single zero heartbeat byte.
+ * Streams that negotiated {@link StreamOptions#OPTION_DTX} also get {@link #TYPE_DTX} frames
+ * with a one byte payload, 1 when the receiver went idle on silence and 0 when it plays again.
+ * <pre>
+ * int  track sample rate
+ * int  frames written to the track and not played yet
+ * int  track buffer size in frames
+ * int  track underrun count, -1 when unknown
+ * long track timestamp frame position, -1 when unavailable
+ * long track timestamp time in microseconds, receiver clock
+ * int  frames queued in the receive ring
+ * int  jitter target in frames
+ * int  interarrival jitter in microseconds
+ * int  estimated latency from receive ring to speaker in microseconds
+ * int  chunks dropped by the ring since the last report
+ * int  periods concealed since the last report
+ * int  chunks trimmed since the last report
+ * int  clock drift correction in ppm
+ * int  time from handshake to the first sample heard in milliseconds, -1 before it
+ * int  median probed latency in microseconds, -1 without probes
+ * int  95th percentile of the probed latency in microseconds, -1 without probes
+ * int  99th percentile of the probed latency in microseconds, -1 without probes
+ * </pre>
+ */
+public class TelemetryReporter {
+    public static final byte TYPE_HEARTBEAT = 0;
+    public static final byte TYPE_TELEMETRY = 1;
+    public static final byte TYPE_DTX = 2;
+    public static final int MIN_INTERVAL_MILLIS = 100;
+    public static final int MAX_INTERVAL_MILLIS = 10_000;
+    private static final int PAYLOAD_SIZE = 16 * 4 + 2 * 8;
+    private final OutputStream mStream;
+    private final PcmWriter mWriter;
+    private final PcmSource mSource;
+    private final JitterEstimator mJitter;
+    private final int inFrameBytes;
+    private final int inSampleRate;
+    private final int intervalMillis;
+    private final long handshakeNanos;
+    private final AudioTimestamp mTimestamp = new AudioTimestamp();
+    private final byte[] mFrame = new byte[1 + 4 + PAYLOAD_SIZE];
+    private long nextReportMillis = 0;
+    private long lastDropped = 0;
+    private long lastConcealed = 0;
+    private long lastTrimmed = 0;
+
+    public TelemetryReporter(OutputStream stream, PcmWriter writer, PcmSource source,
+                             JitterEstimator jitter, StreamOptions options, int intervalMillis) {
+        mStream = stream;
+        mWriter = writer;
+        mSource = source;
+        mJitter = jitter;
+        inFrameBytes = options.getChannelCount() * options.getBytesPerSample();
+        inSampleRate = options.getSampleRate();
+        this.intervalMillis = intervalMillis;
+        handshakeNanos = options.getHandshakeNanos();
+    }
+
+    public static int clampInterval(int intervalMillis) {
+        return Math.max(MIN_INTERVAL_MILLIS, Math.min(MAX_INTERVAL_MILLIS, intervalMillis));
+    }
+
+    public OutputStream getStream() {
+        return mStream;
+    }
+
+    /** Sends a report when the interval elapsed, also serves as the heartbeat of the stream. */
+    public void reportIfDue(long nowMillis) throws IOException {
+        if(nowMillis < nextReportMillis) return;
+        nextReportMillis = nowMillis + intervalMillis;
+        report();
+    }
+
+    public void report() throws IOException {
+        int trackRate = mWriter.getSampleRate();
+        long written = mWriter.getFramesWritten();
+        long position = -1;
+        long timeMicros = 0;
+        long played;
+        if(mWriter.getTimestamp(mTimestamp)) {
+            position = mTimestamp.framePosition;
+            timeMicros = mTimestamp.nanoTime / 1000;
+            played = position + (System.nanoTime() - mTimestamp.nanoTime) * trackRate / 1_000_000_000L;
+        }else {
+            played = mWriter.getPlaybackHeadPosition();
+        }
+        int trackFill = (int) Math.max(0, Math.min(Integer.MAX_VALUE, written - played));
+        int queuedFrames = (int) (mSource.getBuffer().getQueuedBytes() / inFrameBytes);
+        int targetFrames = mJitter.getTargetBytes() / inFrameBytes;
+        long latencyMicros = queuedFrames * 1_000_000L / inSampleRate + trackFill * 1_000_000L / trackRate;
+        long dropped = mSource.getBuffer().getDropped();
+        long concealed = mSource.getConcealed();
+        long trimmed = mSource.getTrimmed();
+        int offset = 0;
+        mFrame[offset++] = TYPE_TELEMETRY;
+        offset = putInt(mFrame, offset, PAYLOAD_SIZE);
+        offset = putInt(mFrame, offset, trackRate);
+        offset = putInt(mFrame, offset, trackFill);
+        offset = putInt(mFrame, offset, mWriter.getBufferFrames());
+        offset = putInt(mFrame, offset, mWriter.getUnderrunCount());
+        offset = putLong(mFrame, offset, position);
+        offset = putLong(mFrame, offset, timeMicros);
+        offset = putInt(mFrame, offset, queuedFrames);
+        offset = putInt(mFrame, offset, targetFrames);
+        offset = putInt(mFrame, offset, mJitter.getJitterMicros());
+        offset = putInt(mFrame, offset, (int) Math.min(Integer.MAX_VALUE, latencyMicros));
+        offset = putInt(mFrame, offset, (int) (dropped - lastDropped));
+        offset = putInt(mFrame, offset, (int) (concealed - lastConcealed));
+        offset = putInt(mFrame, offset, (int) (trimmed - lastTrimmed));
+        offset = putInt(mFrame, offset, mSource.getDriftPpm());
+        long firstPresentNanos = mSource.getFirstPresentNanos();
+        offset = putInt(mFrame, offset, firstPresentNanos == 0 ? -1 : (int) ((firstPresentNanos - handshakeNanos) / 1_000_000));
+        LatencyHistogram latency = mSource.getLatency();
+        offset = putInt(mFrame, offset, (int) latency.getPercentileMicros(50));
+        offset = putInt(mFrame, offset, (int) latency.getPercentileMicros(95));
+        putInt(mFrame, offset, (int) latency.getPercentileMicros(99));
+        lastDropped = dropped;
+        lastConcealed = concealed;
+        lastTrimmed = trimmed;
+        synchronized (mStream) {
+            mStream.write(mFrame);
+            mStream.flush();
+        }
+    }
+
+    /** Tells a sender whether it may stop sending silence, heartbeats keep the stream alive meanwhile. */
+    public static void writeDtx(OutputStream stream, boolean idle) throws IOException {
+        byte[] frame = new byte[]{TYPE_DTX, 1, 0, 0, 0, (byte) (idle ? 1 : 0)};
+        synchronized (stream) {
+            stream.write(frame);
+            stream.flush();
+        }
+    }
+
+    private static int putInt(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
+        return offset + 4;
+    }
+
+    private static int putLong(byte[] data, int offset, long value) {
+        offset = putInt(data, offset, (int) value);
+        return putInt(data, offset, (int) (value >> 32));
+    }
+}
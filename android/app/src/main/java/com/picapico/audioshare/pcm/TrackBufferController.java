@@ -0,0 +1,89 @@
+package com.picapico.audioshare.pcm;
+
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.picapico.audioshare.metrics.Metrics;
+
+/**
+ * Tunes how much of the track buffer is used, in steps of one output burst. The track is created
+ * with room to grow and starts at the smallest burst multiple holding two mixer periods, or at
+ * the size remembered for the sender and network. Every new underrun grows the buffer by a
+ * burst; after a quiet period it shrinks again by a burst, as long as the rest still covers the
+ * arrival jitter of the streams, so busy links settle high and wired links stay low.
+ * Needs {@link AudioTrack#setBufferSizeInFrames(int)}, Android N and later.
+ */
+public class TrackBufferController {
+    private static final String TAG = "AudioShareTrackBuffer";
+    private static final long CHECK_INTERVAL_NANOS = 500_000_000L;
+    private static final long SHRINK_AFTER_NANOS = 30_000_000_000L;
+    private final AudioTrack mAudioTrack;
+    private final int mSampleRate;
+    private final int mBurstFrames;
+    private final int mMinFrames;
+    private final int mMaxFrames;
+    private volatile int bufferFrames;
+    private int lastUnderruns = -1;
+    private long nextCheckNanos = 0;
+    private long stableSinceNanos = 0;
+
+    /**
+     * @param burstFrames frames the device mixes per burst
+     * @param periodFrames frames the writer hands over per write
+     * @param capacityFrames frames the track was created with
+     * @param initialFrames remembered size, 0 for none
+     */
+    public TrackBufferController(AudioTrack audioTrack, int sampleRate, int burstFrames, int periodFrames,
+                                 int capacityFrames, int initialFrames) {
+        mAudioTrack = audioTrack;
+        mSampleRate = sampleRate;
+        mBurstFrames = Math.max(1, burstFrames);
+        mMaxFrames = Math.max(mBurstFrames, capacityFrames / mBurstFrames * mBurstFrames);
+        mMinFrames = Math.min(mMaxFrames, roundUp(periodFrames * 2));
+        int frames = initialFrames > 0 ? roundUp(initialFrames) : mMinFrames;
+        bufferFrames = apply(Math.max(mMinFrames, Math.min(mMaxFrames, frames)));
+    }
+
+    public int getBufferFrames() {
+        return bufferFrames;
+    }
+
+    /** Writer side, called after every write with the highest arrival jitter of the streams. */
+    public void update(long now, int jitterMicros) {
+        if(now < nextCheckNanos) return;
+        nextCheckNanos = now + CHECK_INTERVAL_NANOS;
+        int underruns = mAudioTrack.getUnderrunCount();
+        if(lastUnderruns < 0 || underruns < lastUnderruns) {
+            lastUnderruns = underruns;
+            stableSinceNanos = now;
+            return;
+        }
+        int frames = bufferFrames;
+        if(underruns > lastUnderruns) {
+            Metrics.TRACK_UNDERRUNS.add(underruns - lastUnderruns);
+            if(frames < mMaxFrames) resize(frames + mBurstFrames, underruns - lastUnderruns);
+            stableSinceNanos = now;
+        }else if(now - stableSinceNanos > SHRINK_AFTER_NANOS) {
+            int smaller = frames - mBurstFrames;
+            long jitterFrames = (long) jitterMicros * mSampleRate / 1_000_000L;
+            if(smaller >= mMinFrames && smaller - mBurstFrames > jitterFrames) resize(smaller, 0);
+            stableSinceNanos = now;
+        }
+        lastUnderruns = underruns;
+    }
+
+    private void resize(int frames, int underruns) {
+        int previous = bufferFrames;
+        bufferFrames = apply(frames);
+        Log.i(TAG, "track buffer " + previous + " -> " + bufferFrames + " frames, underruns " + underruns);
+    }
+
+    private int apply(int frames) {
+        int result = mAudioTrack.setBufferSizeInFrames(frames);
+        return result > 0 ? result : bufferFrames;
+    }
+
+    private int roundUp(int frames) {
+        return (frames + mBurstFrames - 1) / mBurstFrames * mBurstFrames;
+    }
+}
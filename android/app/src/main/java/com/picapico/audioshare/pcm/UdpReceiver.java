@@ -0,0 +1,314 @@
+package com.picapico.audioshare.pcm;
+
+import android.util.Log;
+
+import com.picapico.audioshare.metrics.Metrics;
+import com.picapico.audioshare.pcm.codec.PcmDecoder;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Datagram transport for the PCM stream, negotiated on the TCP session.
+ * Every packet starts with an 8 byte little-endian header:
+ * <pre>
+ * byte   type        0 data, 1 parity
+ * byte   count       parity only, number of data packets covered
+ * uint16 sequence    data sequence, or first covered sequence for parity
+ * int32  timestamp   sender sample position, xor of the covered timestamps for parity
+ * </pre>
+ * A data payload is a regular frame body. A parity payload is the uint16 xor of the
+ * covered payload lengths followed by the xor of the zero padded payloads, so one lost
+ * packet per group can be rebuilt. Packets are reordered in a small window and released
+ * in sequence; a gap is skipped once a later packet waited longer than the reorder delay.
+ * Released packets stay in the window so they can still take part in a parity recovery.
+ */
+public class UdpReceiver implements Runnable {
+    private static final String TAG = "AudioShareUdpReceiver";
+    public static final int HEADER_SIZE = 8;
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_PARITY = 1;
+    private static final int WINDOW = 64;
+    private static final int RECEIVE_TIMEOUT_MILLIS = 5;
+    private static final int MAX_PACKET_SIZE = 65507;
+    private final DatagramSocket mSocket;
+    private final PcmRingBuffer mRingBuffer;
+    private final PcmDecoder mDecoder;
+    private final JitterEstimator mJitter;
+    private final PcmWriter mWriter;
+    private final long mReorderNanos;
+    private final int mPacketSize;
+    private final byte[][] packets = new byte[WINDOW][];
+    private final ByteBuffer[] payloads = new ByteBuffer[WINDOW];
+    private final int[] lengths = new int[WINDOW];
+    private final int[] sequences = new int[WINDOW];
+    private final long[] arrivals = new long[WINDOW];
+    private final byte[][] parities = new byte[WINDOW][];
+    private final int[] parityLengths = new int[WINDOW];
+    private final int[] paritySequences = new int[WINDOW];
+    private int nextSequence = -1;
+    private volatile boolean running = false;
+    private Thread mThread;
+    private long received = 0;
+    private long recovered = 0;
+    private long lost = 0;
+    private long late = 0;
+    private long rejected = 0;
+    private GlitchStats mGlitches = new GlitchStats();
+    private InetAddress mPeer = null;
+    private int mFrameBytes = 1;
+
+    public UdpReceiver(DatagramSocket socket, PcmRingBuffer ringBuffer, PcmDecoder decoder,
+                       JitterEstimator jitter, PcmWriter writer, int maxFrameSize, int reorderMillis) {
+        mSocket = socket;
+        mRingBuffer = ringBuffer;
+        mDecoder = decoder;
+        mJitter = jitter;
+        mWriter = writer;
+        mReorderNanos = reorderMillis * 1_000_000L;
+        mPacketSize = Math.min(MAX_PACKET_SIZE, maxFrameSize + HEADER_SIZE + 2);
+        for (int i = 0; i < WINDOW; i++) {
+            packets[i] = new byte[mPacketSize];
+            payloads[i] = ByteBuffer.wrap(packets[i]).order(ByteOrder.LITTLE_ENDIAN);
+            parities[i] = new byte[mPacketSize];
+            sequences[i] = -1;
+            paritySequences[i] = -1;
+        }
+    }
+
+    /** Where lost, late and undecodable packets are counted, set before {@link #start()}. */
+    public void setGlitches(GlitchStats glitches) {
+        mGlitches = glitches;
+    }
+
+    /**
+     * Only datagrams from this address are taken, the peer of the stream's TCP connection, so
+     * other hosts on the network cannot inject audio or fake sequence and parity packets.
+     * Set before {@link #start()}.
+     */
+    public void setPeer(InetAddress peer) {
+        mPeer = peer;
+    }
+
+    /** PCM frame size of the stream, payloads of plain PCM must hold whole frames. Set before {@link #start()}. */
+    public void setFrameBytes(int frameBytes) {
+        mFrameBytes = frameBytes;
+    }
+
+    /** Packets rebuilt from parity. */
+    public long getRecovered() {
+        return recovered;
+    }
+
+    /** Sequence numbers given up, never received nor recovered. */
+    public long getLost() {
+        return lost;
+    }
+
+    public void start() {
+        running = true;
+        mThread = new Thread(this, TAG);
+        mThread.setPriority(Thread.MAX_PRIORITY);
+        mThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        mSocket.close();
+        if(mThread == null) return;
+        try {
+            mThread.join(500);
+        } catch (InterruptedException ignored) {
+        }
+        mThread = null;
+        Log.i(TAG, "udp received " + received + ", recovered " + recovered +
+                ", lost " + lost + ", late " + late + ", rejected " + rejected);
+    }
+
+    @Override
+    public void run() {
+        byte[] buffer = new byte[mPacketSize];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            mSocket.setSoTimeout(RECEIVE_TIMEOUT_MILLIS);
+            while (running) {
+                try {
+                    packet.setLength(buffer.length);
+                    mSocket.receive(packet);
+                    if(mPeer != null && !mPeer.equals(packet.getAddress())) {
+                        rejected++;
+                        continue;
+                    }
+                    onPacket(buffer, packet.getLength(), System.nanoTime());
+                } catch (SocketTimeoutException ignored) {
+                }
+                release(System.nanoTime());
+            }
+        } catch (IOException e) {
+            if(running) Log.e(TAG, "udp receive error: " + e);
+        }
+    }
+
+    void onPacket(byte[] buffer, int length, long now) {
+        if(length < HEADER_SIZE) return;
+        int type = buffer[0];
+        int sequence = (buffer[2] & 0xFF) | ((buffer[3] & 0xFF) << 8);
+        if(type == TYPE_PARITY) {
+            int index = sequence % WINDOW;
+            System.arraycopy(buffer, 0, parities[index], 0, length);
+            parityLengths[index] = length;
+            paritySequences[index] = sequence;
+            return;
+        }
+        if(type != TYPE_DATA) return;
+        received++;
+        if(nextSequence < 0) {
+            nextSequence = sequence;
+        }
+        int distance = distance(sequence, nextSequence);
+        if(distance < 0) {
+            late++;
+            mGlitches.record(GlitchStats.LATE);
+            return;
+        }
+        if(distance >= WINDOW) {
+            lost += distance;
+            mGlitches.record(GlitchStats.LOST, distance);
+            for (int i = 0; i < WINDOW; i++) {
+                sequences[i] = -1;
+            }
+            nextSequence = sequence;
+        }
+        int index = sequence % WINDOW;
+        System.arraycopy(buffer, 0, packets[index], 0, length);
+        lengths[index] = length;
+        sequences[index] = sequence;
+        arrivals[index] = now;
+    }
+
+    /** Hands the packets that are in sequence, or waited out the reorder delay, to the ring. */
+    void release(long now) {
+        while (nextSequence >= 0) {
+            int index = nextSequence % WINDOW;
+            if(sequences[index] != nextSequence && !recover(nextSequence)) {
+                long oldest = oldestPendingArrival();
+                if(oldest == 0 || now - oldest < mReorderNanos) return;
+                lost++;
+                mGlitches.record(GlitchStats.LOST);
+                nextSequence = (nextSequence + 1) & 0xFFFF;
+                continue;
+            }
+            deliver(index);
+            nextSequence = (nextSequence + 1) & 0xFFFF;
+        }
+    }
+
+    private void deliver(int index) {
+        ByteBuffer payload = payloads[index];
+        ((Buffer) payload).limit(lengths[index]);
+        ((Buffer) payload).position(HEADER_SIZE);
+        int pcmLength = payload.remaining();
+        if(mDecoder == null && pcmLength % mFrameBytes != 0) {
+            Log.w(TAG, "udp partial frame, length " + pcmLength);
+            mGlitches.record(GlitchStats.PARTIAL_FRAME);
+            return;
+        }
+        try {
+            if(mDecoder == null) {
+                mRingBuffer.offer(payload);
+            }else {
+                pcmLength = mDecoder.decode(payload, mRingBuffer);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "udp decode error: " + e);
+            mGlitches.record(GlitchStats.DECODE_ERROR);
+            return;
+        }
+        Metrics.PCM_FRAMES.increment();
+        Metrics.PCM_BYTES.add(lengths[index] - HEADER_SIZE);
+        mJitter.onFrame(arrivals[index], pcmLength);
+        if(mWriter != null) mWriter.signal();
+    }
+
+    private long oldestPendingArrival() {
+        long oldest = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            if(sequences[i] < 0 || distance(sequences[i], nextSequence) < 0) continue;
+            if(oldest == 0 || arrivals[i] < oldest) {
+                oldest = arrivals[i];
+            }
+        }
+        return oldest;
+    }
+
+    /** Rebuilds a missing data packet from the parity of its group if it is the only one missing. */
+    private boolean recover(int sequence) {
+        for (int p = 0; p < WINDOW; p++) {
+            int base = paritySequences[p];
+            if(base < 0) continue;
+            byte[] parity = parities[p];
+            int count = parity[1] & 0xFF;
+            int offset = distance(sequence, base);
+            if(offset < 0 || offset >= count) continue;
+            for (int i = 0; i < count; i++) {
+                int covered = (base + i) & 0xFFFF;
+                if(covered != sequence && sequences[covered % WINDOW] != covered) return false;
+            }
+            int parityLength = parityLengths[p];
+            int length = (parity[HEADER_SIZE] & 0xFF) | ((parity[HEADER_SIZE + 1] & 0xFF) << 8);
+            int timestamp = readInt(parity, 4);
+            for (int i = 0; i < count; i++) {
+                int covered = (base + i) & 0xFFFF;
+                if(covered == sequence) continue;
+                int index = covered % WINDOW;
+                length ^= lengths[index] - HEADER_SIZE;
+                timestamp ^= readInt(packets[index], 4);
+            }
+            if(length <= 0 || length > parityLength - HEADER_SIZE - 2) return false;
+            int index = sequence % WINDOW;
+            byte[] target = packets[index];
+            System.arraycopy(parity, HEADER_SIZE + 2, target, HEADER_SIZE, length);
+            for (int i = 0; i < count; i++) {
+                int covered = (base + i) & 0xFFFF;
+                if(covered == sequence) continue;
+                byte[] source = packets[covered % WINDOW];
+                int sourceLength = lengths[covered % WINDOW] - HEADER_SIZE;
+                for (int j = 0; j < Math.min(length, sourceLength); j++) {
+                    target[HEADER_SIZE + j] ^= source[HEADER_SIZE + j];
+                }
+            }
+            target[0] = TYPE_DATA;
+            target[1] = 0;
+            target[2] = (byte) sequence;
+            target[3] = (byte) (sequence >> 8);
+            target[4] = (byte) timestamp;
+            target[5] = (byte) (timestamp >> 8);
+            target[6] = (byte) (timestamp >> 16);
+            target[7] = (byte) (timestamp >> 24);
+            lengths[index] = length + HEADER_SIZE;
+            sequences[index] = sequence;
+            arrivals[index] = System.nanoTime();
+            paritySequences[p] = -1;
+            recovered++;
+            return true;
+        }
+        return false;
+    }
+
+    private static int distance(int sequence, int from) {
+        return (short) (sequence - from);
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return (data[offset] & 0xFF) |
+                ((data[offset + 1] & 0xFF) << 8) |
+                ((data[offset + 2] & 0xFF) << 16) |
+                ((data[offset + 3] & 0xFF) << 24);
+    }
+}
@@ -0,0 +1,49 @@
+package com.picapico.audioshare.pcm.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/** MSB-first bit reader over the remaining bytes of a frame. */
+class BitReader {
+    private ByteBuffer mBuffer;
+    private long cache;
+    private int cacheBits;
+
+    void reset(ByteBuffer buffer) {
+        mBuffer = buffer;
+        cache = 0;
+        cacheBits = 0;
+    }
+
+    int readBits(int count) throws IOException {
+        if(count == 0) return 0;
+        while (cacheBits < count) {
+            if(!mBuffer.hasRemaining()) throw new IOException("bit stream underflow");
+            cache = (cache << 8) | (mBuffer.get() & 0xFF);
+            cacheBits += 8;
+        }
+        cacheBits -= count;
+        return (int) ((cache >>> cacheBits) & ((1L << count) - 1));
+    }
+
+    /** Counts zero bits up to the next one bit, consuming the one bit. */
+    int readUnary() throws IOException {
+        int count = 0;
+        while (readBits(1) == 0) {
+            count++;
+        }
+        return count;
+    }
+
+    /** Rice coded, zigzag mapped signed value. */
+    int readRice(int parameter) throws IOException {
+        int value = (readUnary() << parameter) | readBits(parameter);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Drops the bits left in the current byte, bytes are only fetched on demand so nothing else is cached. */
+    void alignToByte() {
+        cache = 0;
+        cacheBits = 0;
+    }
+}
@@ -0,0 +1,71 @@
+package com.picapico.audioshare.pcm.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * IMA-ADPCM, 4 bits per sample.
+ * A frame starts with a 4 byte header per channel (int16 first sample, uint8 step index,
+ * reserved byte), followed by the remaining samples interleaved by channel, low nibble first.
+ */
+class ImaAdpcmDecoder extends PcmDecoder {
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+    private final int[] predictors;
+    private final int[] indexes;
+
+    ImaAdpcmDecoder(int channels) {
+        super(channels);
+        predictors = new int[channels];
+        indexes = new int[channels];
+    }
+
+    @Override
+    protected void decodeFrame(ByteBuffer frame) throws IOException {
+        if(frame.remaining() < channels * 4) {
+            throw new IOException("adpcm frame too short: " + frame.remaining());
+        }
+        for (int channel = 0; channel < channels; channel++) {
+            predictors[channel] = frame.getShort();
+            indexes[channel] = Math.min(frame.get() & 0xFF, STEP_TABLE.length - 1);
+            frame.get();
+            put(predictors[channel]);
+        }
+        int channel = 0;
+        while (frame.hasRemaining()) {
+            int data = frame.get() & 0xFF;
+            put(decodeNibble(channel, data & 0x0F));
+            channel = channel + 1 == channels ? 0 : channel + 1;
+            put(decodeNibble(channel, data >> 4));
+            channel = channel + 1 == channels ? 0 : channel + 1;
+        }
+    }
+
+    private int decodeNibble(int channel, int nibble) {
+        int index = indexes[channel];
+        int step = STEP_TABLE[index];
+        int diff = step >> 3;
+        if((nibble & 1) != 0) diff += step >> 2;
+        if((nibble & 2) != 0) diff += step >> 1;
+        if((nibble & 4) != 0) diff += step;
+        int predictor = predictors[channel];
+        predictor = clamp16((nibble & 8) != 0 ? predictor - diff : predictor + diff);
+        index += INDEX_TABLE[nibble];
+        indexes[channel] = index < 0 ? 0 : Math.min(index, STEP_TABLE.length - 1);
+        predictors[channel] = predictor;
+        return predictor;
+    }
+}
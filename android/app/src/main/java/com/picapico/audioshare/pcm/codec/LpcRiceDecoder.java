@@ -0,0 +1,97 @@
+package com.picapico.audioshare.pcm.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Lossless linear prediction with Rice coded residuals.
+ * A frame is an int32 sample count per channel and a channel mode byte (0 independent,
+ * 1 left/side for stereo), followed by one byte aligned subframe per channel:
+ * <pre>
+ * byte   type        0 verbatim int32 samples, 1 lpc
+ * byte   order       lpc only, 1..32
+ * byte   shift       lpc only, coefficient quantization shift
+ * int16  coefficients[order], int32 warm-up samples[order]
+ * byte   rice parameter, then rice coded residuals for the other samples
+ * </pre>
+ * Samples are int32 because the side channel, left minus right, needs 17 bits at full scale.
+ */
+class LpcRiceDecoder extends PcmDecoder {
+    private static final int SUBFRAME_VERBATIM = 0;
+    private static final int SUBFRAME_LPC = 1;
+    private static final int MODE_LEFT_SIDE = 1;
+    private static final int MAX_ORDER = 32;
+    private static final int MAX_SAMPLES = 1 << 16;
+    private final BitReader mBitReader = new BitReader();
+    private final int[] coefficients = new int[MAX_ORDER];
+    private int[][] samples;
+
+    LpcRiceDecoder(int channels) {
+        super(channels);
+        samples = new int[channels][0];
+    }
+
+    @Override
+    protected void decodeFrame(ByteBuffer frame) throws IOException {
+        int count = frame.getInt();
+        int mode = frame.get();
+        if(count < 0 || count > MAX_SAMPLES) {
+            throw new IOException("invalid lpc sample count: " + count);
+        }
+        if(samples[0].length < count) {
+            samples = new int[channels][count];
+        }
+        for (int channel = 0; channel < channels; channel++) {
+            decodeSubframe(frame, samples[channel], count);
+        }
+        if(mode == MODE_LEFT_SIDE && channels == 2) {
+            int[] left = samples[0];
+            int[] side = samples[1];
+            for (int i = 0; i < count; i++) {
+                side[i] = left[i] - side[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            for (int channel = 0; channel < channels; channel++) {
+                put(clamp16(samples[channel][i]));
+            }
+        }
+    }
+
+    private void decodeSubframe(ByteBuffer frame, int[] output, int count) throws IOException {
+        int type = frame.get();
+        if(type == SUBFRAME_VERBATIM) {
+            for (int i = 0; i < count; i++) {
+                output[i] = frame.getInt();
+            }
+            return;
+        }
+        if(type != SUBFRAME_LPC) {
+            throw new IOException("invalid lpc subframe type: " + type);
+        }
+        int order = frame.get() & 0xFF;
+        int shift = frame.get() & 0xFF;
+        if(order < 1 || order > MAX_ORDER || order > count || shift > 31) {
+            throw new IOException("invalid lpc order " + order + " shift " + shift);
+        }
+        for (int i = 0; i < order; i++) {
+            coefficients[i] = frame.getShort();
+        }
+        for (int i = 0; i < order; i++) {
+            output[i] = frame.getInt();
+        }
+        int parameter = frame.get() & 0xFF;
+        if(parameter > 30) {
+            throw new IOException("invalid rice parameter: " + parameter);
+        }
+        mBitReader.reset(frame);
+        for (int i = order; i < count; i++) {
+            long prediction = 0;
+            for (int j = 0; j < order; j++) {
+                prediction += (long) coefficients[j] * output[i - 1 - j];
+            }
+            output[i] = mBitReader.readRice(parameter) + (int) (prediction >> shift);
+        }
+        mBitReader.alignToByte();
+    }
+}
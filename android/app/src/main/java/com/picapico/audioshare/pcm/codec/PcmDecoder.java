@@ -0,0 +1,82 @@
+package com.picapico.audioshare.pcm.codec;
+
+import com.picapico.audioshare.pcm.PcmRingBuffer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decodes compressed frames of the audio share protocol into interleaved 16-bit PCM
+ * written straight into the slots of a {@link PcmRingBuffer}.
+ */
+public abstract class PcmDecoder {
+    public static final int CODEC_PCM = 0;
+    public static final int CODEC_IMA_ADPCM = 1;
+    public static final int CODEC_LPC_RICE = 2;
+
+    protected final int channels;
+    private PcmRingBuffer mTarget;
+    private ByteBuffer mSlot;
+    private int mWritten;
+
+    protected PcmDecoder(int channels) {
+        this.channels = channels;
+    }
+
+    public static boolean isSupported(int codec) {
+        return codec == CODEC_PCM || codec == CODEC_IMA_ADPCM || codec == CODEC_LPC_RICE;
+    }
+
+    /** Returns the decoder for a negotiated codec, null for raw PCM which needs no decoding. */
+    public static PcmDecoder create(int codec, int channels) {
+        switch (codec) {
+            case CODEC_IMA_ADPCM:
+                return new ImaAdpcmDecoder(channels);
+            case CODEC_LPC_RICE:
+                return new LpcRiceDecoder(channels);
+            default:
+                return null;
+        }
+    }
+
+    /** Decodes one frame (position to limit) and returns the PCM bytes written into the ring. */
+    public int decode(ByteBuffer frame, PcmRingBuffer target) throws IOException {
+        mTarget = target;
+        mWritten = 0;
+        frame.order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            decodeFrame(frame);
+        } catch (RuntimeException e) {
+            throw new IOException("corrupt frame: " + e);
+        } finally {
+            if(mSlot != null && mSlot.position() > 0) {
+                mTarget.publish();
+            }
+            mSlot = null;
+            mTarget = null;
+        }
+        return mWritten;
+    }
+
+    protected abstract void decodeFrame(ByteBuffer frame) throws IOException;
+
+    protected final void put(int sample) {
+        if(mSlot == null) {
+            mSlot = mTarget.claim();
+            mSlot.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        mSlot.putShort((short) sample);
+        mWritten += 2;
+        if(!mSlot.hasRemaining()) {
+            mTarget.publish();
+            mSlot = null;
+        }
+    }
+
+    protected static int clamp16(int sample) {
+        if(sample > Short.MAX_VALUE) return Short.MAX_VALUE;
+        if(sample < Short.MIN_VALUE) return Short.MIN_VALUE;
+        return sample;
+    }
+}
@@ -0,0 +1,43 @@
+package com.picapico.audioshare.pcm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ClockSyncTest {
+    @Test
+    public void symmetricExchangeGivesOffsetAndRoundTrip() {
+        ClockSync clock = new ClockSync();
+        assertFalse(clock.isSynced());
+        assertEquals(-1, clock.getRoundTripMicros());
+        // local clock is 5000us ahead, 300us each way, 100us to answer
+        assertTrue(clock.addSample(1000, 6300, 6400, 1700));
+        assertTrue(clock.isSynced());
+        assertEquals(5000, clock.getOffsetMicros());
+        assertEquals(600, clock.getRoundTripMicros());
+        assertEquals(2000 * 1000L + 5000 * 1000L, clock.toLocalNanos(2000));
+    }
+
+    @Test
+    public void fastestExchangeWinsAndIsApproachedGradually() {
+        ClockSync clock = new ClockSync();
+        clock.addSample(1000, 6300, 6400, 1700);
+        // a queued reply, 2000us late on the way back, skews the offset but is not the fastest
+        clock.addSample(10_000, 15_300, 15_400, 12_700);
+        assertEquals(5000, clock.getOffsetMicros());
+        assertEquals(600, clock.getRoundTripMicros());
+        // a faster exchange with another offset is taken a quarter at a time
+        clock.addSample(20_000, 25_500, 25_500, 20_200);
+        assertEquals(200, clock.getRoundTripMicros());
+        assertEquals(5100, clock.getOffsetMicros());
+        clock.addSample(30_000, 35_500, 35_500, 30_200);
+        assertEquals(5175, clock.getOffsetMicros());
+    }
+
+    @Test
+    public void rejectsNegativeRoundTrip() {
+        ClockSync clock = new ClockSync();
+        assertFalse(clock.addSample(1000, 2000, 5000, 1500));
+        assertFalse(clock.isSynced());
+    }
+}
@@ -0,0 +1,161 @@
+package com.picapico.audioshare.pcm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+    private static final int MAX_FRAME = 1024;
+
+    @Test
+    public void readsLegacyLengthPrefixedFrames() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        putInt(stream, 6);
+        stream.write(new byte[]{1, 2, 3, 4, 5, 6});
+        putInt(stream, 0);
+        putInt(stream, 2);
+        stream.write(new byte[]{7, 8});
+        FrameReader reader = reader(stream, FrameHeader.VERSION_1);
+        FrameHeader header = new FrameHeader();
+        PcmRingBuffer ring = new PcmRingBuffer(8, 4);
+        reader.readHeader(header);
+        assertTrue(header.isAudio());
+        assertEquals(6, header.getLength());
+        assertEquals(FrameHeader.NO_TIMESTAMP, header.getTimestamp());
+        reader.readInto(ring, header.getLength());
+        assertEquals(6, ring.getQueuedBytes());
+        assertEquals(2, ring.size());
+        reader.readHeader(header);
+        assertTrue(header.isHeartbeat());
+        reader.readHeader(header);
+        assertTrue(header.isAudio());
+        assertEquals(2, header.getLength());
+        reader.skip(2);
+        try {
+            reader.readHeader(header);
+            fail("expected end of stream");
+        } catch (EOFException ignored) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedLegacyLength() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        putInt(stream, MAX_FRAME + 1);
+        reader(stream, FrameHeader.VERSION_1).readHeader(new FrameHeader());
+    }
+
+    @Test
+    public void readsV2HeaderAndChecksCrc() throws IOException {
+        byte[] payload = {10, 20, 30, 40};
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        putFrame(stream, 5, 4800, payload, crc(payload), 123_456L);
+        putFrame(stream, 6, 4801, payload, crc(payload) ^ 1, FrameHeader.NO_TIMESTAMP);
+        FrameReader reader = reader(stream, FrameHeader.VERSION_2);
+        FrameHeader header = new FrameHeader();
+        ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME);
+
+        reader.readHeader(header);
+        assertTrue(header.isAudio());
+        assertTrue(header.hasCrc());
+        assertEquals(5, header.getSequence());
+        assertEquals(4800, header.getTimestamp());
+        assertEquals(4, header.getLength());
+        assertTrue(header.hasPresentationTime());
+        assertEquals(123_456L, header.getPresentationTime());
+        reader.readFrame(frame, header.getLength());
+        assertTrue(reader.verify(header, frame));
+        assertEquals(4, frame.remaining());
+
+        reader.readHeader(header);
+        assertFalse(header.hasPresentationTime());
+        assertEquals(FrameHeader.NO_TIMESTAMP, header.getPresentationTime());
+        reader.readFrame(frame, header.getLength());
+        assertFalse(reader.verify(header, frame));
+        assertEquals(1, reader.getCorrupt());
+        assertEquals(0, reader.getLost());
+    }
+
+    @Test
+    public void countsSequenceGaps() throws IOException {
+        byte[] payload = {1, 2};
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        putFrame(stream, 1, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        putFrame(stream, 2, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        putFrame(stream, 5, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        putFrame(stream, 4, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        putFrame(stream, 5, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        putFrame(stream, 7, 0, payload, crc(payload), FrameHeader.NO_TIMESTAMP);
+        FrameReader reader = reader(stream, FrameHeader.VERSION_2);
+        FrameHeader header = new FrameHeader();
+        for (int i = 0; i < 6; i++) {
+            reader.readHeader(header);
+            reader.skip(header.getLength());
+        }
+        assertEquals(3, reader.getLost());
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsWrongVersion() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        putFrame(stream, 1, 0, new byte[0], 0, FrameHeader.NO_TIMESTAMP);
+        byte[] data = stream.toByteArray();
+        data[0] = 3;
+        FrameReader reader = new FrameReader(Channels.newChannel(new ByteArrayInputStream(data)),
+                FrameHeader.VERSION_2, MAX_FRAME, 64);
+        reader.readHeader(new FrameHeader());
+    }
+
+    @Test
+    public void parsesVersionNibble() {
+        assertEquals(FrameHeader.VERSION_1, FrameHeader.versionOf((byte) 0x05));
+        assertEquals(FrameHeader.VERSION_2, FrameHeader.versionOf((byte) 0x25));
+        assertEquals(5, FrameHeader.commandOf((byte) 0x25));
+    }
+
+    private static FrameReader reader(ByteArrayOutputStream stream, int version) {
+        return new FrameReader(Channels.newChannel(new ByteArrayInputStream(stream.toByteArray())),
+                version, MAX_FRAME, 64);
+    }
+
+    private static void putFrame(ByteArrayOutputStream stream, int sequence, long timestamp,
+                                 byte[] payload, int crc, long presentationTime) throws IOException {
+        int flags = FrameHeader.FLAG_CRC;
+        if(presentationTime != FrameHeader.NO_TIMESTAMP) flags |= FrameHeader.FLAG_PTS;
+        stream.write(FrameHeader.VERSION_2);
+        stream.write(FrameHeader.TYPE_AUDIO);
+        stream.write(flags);
+        stream.write(0);
+        putInt(stream, sequence);
+        putLong(stream, timestamp);
+        putInt(stream, payload.length);
+        putInt(stream, crc);
+        if(presentationTime != FrameHeader.NO_TIMESTAMP) putLong(stream, presentationTime);
+        stream.write(payload);
+    }
+
+    private static int crc(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static void putInt(ByteArrayOutputStream stream, int value) {
+        for (int i = 0; i < 4; i++) {
+            stream.write(value >> (i * 8));
+        }
+    }
+
+    private static void putLong(ByteArrayOutputStream stream, long value) {
+        putInt(stream, (int) value);
+        putInt(stream, (int) (value >> 32));
+    }
+}
@@ -0,0 +1,49 @@
+package com.picapico.audioshare.pcm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JitterEstimatorTest {
+    private static final int BYTES_PER_SECOND = 48000 * 4;
+    private static final int FRAME_BYTES = BYTES_PER_SECOND / 100;
+    private static final long FRAME_NANOS = 10_000_000L;
+
+    @Test
+    public void steadyArrivalsKeepMinimumDepth() {
+        JitterEstimator jitter = new JitterEstimator(BYTES_PER_SECOND, 20, 200);
+        for (int i = 1; i <= 100; i++) {
+            jitter.onFrame(i * FRAME_NANOS, FRAME_BYTES);
+        }
+        assertEquals(0, jitter.getJitterMicros());
+        assertEquals(BYTES_PER_SECOND / 50, jitter.getTargetBytes());
+    }
+
+    @Test
+    public void jitterRaisesDepthUpToMaximum() {
+        JitterEstimator jitter = new JitterEstimator(BYTES_PER_SECOND, 20, 200);
+        long arrival = 0;
+        for (int i = 1; i <= 200; i++) {
+            arrival += i % 2 == 0 ? 2 * FRAME_NANOS : 0;
+            jitter.onFrame(arrival, FRAME_BYTES);
+        }
+        assertEquals(10_000, jitter.getJitterMicros(), 10);
+        assertEquals(BYTES_PER_SECOND * 40 / 1000, jitter.getTargetBytes(), FRAME_BYTES / 100);
+        for (int i = 0; i < 20; i++) {
+            arrival += 1_000_000_000L;
+            jitter.onFrame(arrival, FRAME_BYTES);
+        }
+        assertEquals(BYTES_PER_SECOND / 5, jitter.getTargetBytes());
+    }
+
+    @Test
+    public void delayIsMeasuredAboveFastestTransit() {
+        JitterEstimator jitter = new JitterEstimator(BYTES_PER_SECOND, 20, 200);
+        jitter.onFrame(1_000_000L + 5_000_000L, FRAME_BYTES, 1_000_000L);
+        jitter.onFrame(11_000_000L + 5_000_000L, FRAME_BYTES, 11_000_000L);
+        assertEquals(0, jitter.getDelayMicros());
+        jitter.onFrame(21_000_000L + 8_000_000L, FRAME_BYTES, 21_000_000L);
+        assertEquals(3000, jitter.getDelayMicros());
+        assertEquals(187, jitter.getJitterMicros());
+    }
+}
@@ -0,0 +1,72 @@
+package com.picapico.audioshare.pcm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class PcmRingBufferTest {
+    @Test
+    public void splitsOfferIntoSlots() {
+        PcmRingBuffer ring = new PcmRingBuffer(8, 4);
+        ring.offer(bytes(0, 10));
+        assertEquals(3, ring.size());
+        assertEquals(10, ring.getQueuedBytes());
+        assertEquals(10, ring.getPublishedBytes());
+        ByteBuffer chunk = ByteBuffer.allocate(4);
+        assertEquals(4, ring.poll(chunk));
+        assertEquals(0, chunk.get(0));
+        assertEquals(4, ring.poll(chunk));
+        assertEquals(2, ring.poll(chunk));
+        assertEquals(8, chunk.get(0));
+        assertEquals(0, ring.poll(chunk));
+        assertEquals(0, ring.getQueuedBytes());
+        assertEquals(10, ring.getRemovedBytes());
+    }
+
+    @Test
+    public void dropsOldestWhenFull() {
+        PcmRingBuffer ring = new PcmRingBuffer(2, 4);
+        ring.offer(bytes(0, 4));
+        ring.offer(bytes(4, 4));
+        ring.offer(bytes(8, 3));
+        assertEquals(1, ring.getDropped());
+        assertEquals(2, ring.size());
+        assertEquals(7, ring.getQueuedBytes());
+        assertEquals(4, ring.getRemovedBytes());
+        assertEquals(11, ring.getPublishedBytes());
+        ByteBuffer chunk = ByteBuffer.allocate(4);
+        assertEquals(4, ring.poll(chunk));
+        assertEquals(4, chunk.get(0));
+        assertEquals(4, ring.getPolledStart());
+        assertEquals(3, ring.poll(chunk));
+        assertEquals(8, chunk.get(0));
+        assertEquals(8, ring.getPolledStart());
+        assertEquals(11, ring.getRemovedBytes());
+    }
+
+    @Test
+    public void pollAfterAppends() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 4);
+        ring.offer(bytes(2, 4));
+        ByteBuffer chunk = ByteBuffer.allocate(8);
+        chunk.put((byte) 0).put((byte) 1);
+        assertEquals(4, ring.pollAfter(chunk));
+        assertEquals(6, chunk.position());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, chunk.get(i));
+        }
+        assertEquals(0, ring.pollAfter(chunk));
+        assertEquals(6, chunk.position());
+    }
+
+    private static ByteBuffer bytes(int first, int count) {
+        ByteBuffer buffer = ByteBuffer.allocate(count);
+        for (int i = 0; i < count; i++) {
+            buffer.put((byte) (first + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,136 @@
+package com.picapico.audioshare.pcm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class UdpReceiverTest {
+    private static final long REORDER_NANOS = 20_000_000L;
+    private DatagramSocket mSocket;
+    private PcmRingBuffer mRing;
+    private GlitchStats mGlitches;
+    private UdpReceiver mReceiver;
+
+    @Before
+    public void setUp() throws Exception {
+        mSocket = new DatagramSocket(0);
+        mRing = new PcmRingBuffer(64, 256);
+        mGlitches = new GlitchStats();
+        mReceiver = new UdpReceiver(mSocket, mRing, null, new JitterEstimator(48000 * 4, 20, 200),
+                null, 256, 20);
+        mReceiver.setGlitches(mGlitches);
+    }
+
+    @After
+    public void tearDown() {
+        mSocket.close();
+    }
+
+    @Test
+    public void reordersWithinWindow() {
+        receive(data(10, 4), 0);
+        receive(data(12, 4), 1);
+        receive(data(11, 4), 2);
+        mReceiver.release(3);
+        assertArrayEquals(new int[]{10, 11, 12}, delivered());
+        assertEquals(0, mReceiver.getLost());
+    }
+
+    @Test
+    public void skipsGapAfterReorderDelay() {
+        receive(data(0, 4), 0);
+        mReceiver.release(0);
+        receive(data(2, 4), 1);
+        mReceiver.release(REORDER_NANOS / 2);
+        assertArrayEquals(new int[]{0}, delivered());
+        mReceiver.release(REORDER_NANOS + 2);
+        assertArrayEquals(new int[]{2}, delivered());
+        assertEquals(1, mReceiver.getLost());
+        assertEquals(1, mGlitches.getCount(GlitchStats.LOST));
+        receive(data(1, 4), REORDER_NANOS + 3);
+        assertEquals(1, mGlitches.getCount(GlitchStats.LATE));
+    }
+
+    @Test
+    public void recoversOneLostPacketFromParity() {
+        byte[] first = data(20, 4);
+        byte[] second = data(21, 6);
+        byte[] third = data(22, 2);
+        receive(first, 0);
+        receive(third, 1);
+        receive(parity(20, first, second, third), 2);
+        mReceiver.release(3);
+        assertArrayEquals(new int[]{20, 21, 22}, delivered());
+        assertEquals(1, mReceiver.getRecovered());
+        assertEquals(0, mReceiver.getLost());
+        assertEquals(4 + 6 + 2, mRing.getPublishedBytes());
+    }
+
+    @Test
+    public void dropsPartialFrames() {
+        mReceiver.setFrameBytes(4);
+        receive(data(0, 6), 0);
+        receive(data(1, 8), 0);
+        mReceiver.release(1);
+        assertArrayEquals(new int[]{1}, delivered());
+        assertEquals(1, mGlitches.getCount(GlitchStats.PARTIAL_FRAME));
+    }
+
+    private void receive(byte[] packet, long now) {
+        mReceiver.onPacket(packet, packet.length, now);
+    }
+
+    /** First payload byte of every chunk in the ring, the sequence it was made from. */
+    private int[] delivered() {
+        ByteBuffer chunk = ByteBuffer.allocate(mRing.getSlotSize());
+        int[] sequences = new int[mRing.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            mRing.poll(chunk);
+            sequences[i] = chunk.get(0);
+        }
+        return sequences;
+    }
+
+    /** Data packet whose payload bytes all hold the low byte of the sequence. */
+    private static byte[] data(int sequence, int length) {
+        byte[] packet = new byte[UdpReceiver.HEADER_SIZE + length];
+        packet[0] = UdpReceiver.TYPE_DATA;
+        packet[2] = (byte) sequence;
+        packet[3] = (byte) (sequence >> 8);
+        packet[4] = (byte) (sequence * 100);
+        for (int i = UdpReceiver.HEADER_SIZE; i < packet.length; i++) {
+            packet[i] = (byte) sequence;
+        }
+        return packet;
+    }
+
+    private static byte[] parity(int first, byte[]... packets) {
+        int length = 0;
+        for (byte[] packet : packets) {
+            length = Math.max(length, packet.length - UdpReceiver.HEADER_SIZE);
+        }
+        byte[] parity = new byte[UdpReceiver.HEADER_SIZE + 2 + length];
+        parity[0] = UdpReceiver.TYPE_PARITY;
+        parity[1] = (byte) packets.length;
+        parity[2] = (byte) first;
+        parity[3] = (byte) (first >> 8);
+        int lengths = 0;
+        for (byte[] packet : packets) {
+            lengths ^= packet.length - UdpReceiver.HEADER_SIZE;
+            for (int i = 4; i < UdpReceiver.HEADER_SIZE; i++) {
+                parity[i] ^= packet[i];
+            }
+            for (int i = UdpReceiver.HEADER_SIZE; i < packet.length; i++) {
+                parity[i + 2] ^= packet[i];
+            }
+        }
+        parity[UdpReceiver.HEADER_SIZE] = (byte) lengths;
+        parity[UdpReceiver.HEADER_SIZE + 1] = (byte) (lengths >> 8);
+        return parity;
+    }
+}
@@ -0,0 +1,100 @@
+package com.picapico.audioshare.pcm.codec;
+
+import com.picapico.audioshare.pcm.PcmRingBuffer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ImaAdpcmDecoderTest {
+    private static final int[] INDEX_TABLE = {-1, -1, -1, -1, 2, 4, 6, 8};
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    @Test
+    public void decodesWhatTheEncoderReconstructs() throws IOException {
+        int channels = 2;
+        int frames = 257;
+        int[] input = new int[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            input[i * 2] = (int) (16000 * Math.sin(i * 0.07));
+            input[i * 2 + 1] = (int) (8000 * Math.sin(i * 0.21));
+        }
+        int[] expected = new int[input.length];
+        ByteBuffer frame = encode(input, channels, expected);
+        PcmRingBuffer ring = new PcmRingBuffer(64, 1024);
+        int length = PcmDecoder.create(PcmDecoder.CODEC_IMA_ADPCM, channels).decode(frame, ring);
+        int[] decoded = LpcRiceDecoderTest.read(ring, length);
+        assertArrayEquals(expected, decoded);
+        for (int i = 20 * channels; i < input.length; i++) {
+            assertEquals(input[i], decoded[i], 1200);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsShortFrame() throws IOException {
+        PcmDecoder.create(PcmDecoder.CODEC_IMA_ADPCM, 2).decode(ByteBuffer.allocate(5), new PcmRingBuffer(4, 64));
+    }
+
+    /** Encodes the samples, the first frame of every channel goes in the header. */
+    private static ByteBuffer encode(int[] input, int channels, int[] reconstructed) {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int[] predictors = new int[channels];
+        int[] indexes = new int[channels];
+        for (int channel = 0; channel < channels; channel++) {
+            predictors[channel] = input[channel];
+            reconstructed[channel] = input[channel];
+            output.write(input[channel] & 0xFF);
+            output.write((input[channel] >> 8) & 0xFF);
+            output.write(0);
+            output.write(0);
+        }
+        int low = -1;
+        for (int i = channels; i < input.length; i++) {
+            int channel = i % channels;
+            int step = STEP_TABLE[indexes[channel]];
+            int diff = input[i] - predictors[channel];
+            int nibble = diff < 0 ? 8 : 0;
+            diff = Math.abs(diff);
+            int delta = step >> 3;
+            if(diff >= step) {
+                nibble |= 4;
+                diff -= step;
+                delta += step;
+            }
+            if(diff >= step >> 1) {
+                nibble |= 2;
+                diff -= step >> 1;
+                delta += step >> 1;
+            }
+            if(diff >= step >> 2) {
+                nibble |= 1;
+                delta += step >> 2;
+            }
+            int predictor = (nibble & 8) != 0 ? predictors[channel] - delta : predictors[channel] + delta;
+            predictors[channel] = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+            indexes[channel] = Math.max(0, Math.min(STEP_TABLE.length - 1, indexes[channel] + INDEX_TABLE[nibble & 7]));
+            reconstructed[i] = predictors[channel];
+            if(low < 0) {
+                low = nibble;
+            }else {
+                output.write(low | (nibble << 4));
+                low = -1;
+            }
+        }
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+}
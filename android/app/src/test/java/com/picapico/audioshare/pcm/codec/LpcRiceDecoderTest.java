@@ -0,0 +1,160 @@
+package com.picapico.audioshare.pcm.codec;
+
+import com.picapico.audioshare.pcm.PcmRingBuffer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class LpcRiceDecoderTest {
+    private static final int[] COEFFICIENTS = {2, -1};
+
+    @Test
+    public void decodesLpcSubframes() throws IOException {
+        int[] left = new int[256];
+        int[] right = new int[256];
+        for (int i = 0; i < left.length; i++) {
+            left[i] = (int) (20000 * Math.sin(i * 0.05));
+            right[i] = (int) (12000 * Math.cos(i * 0.03));
+        }
+        ByteBuffer frame = new Encoder(left.length, 0).lpc(left).lpc(right).toFrame();
+        assertArrayEquals(interleave(left, right), decode(frame, 2));
+    }
+
+    @Test
+    public void decodesFullScaleLeftSide() throws IOException {
+        int[] left = new int[64];
+        int[] right = new int[64];
+        int[] side = new int[64];
+        for (int i = 0; i < left.length; i++) {
+            left[i] = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            right[i] = -left[i] - 1;
+            side[i] = left[i] - right[i];
+        }
+        assertEquals(65535, side[0]);
+        ByteBuffer frame = new Encoder(left.length, 1).verbatim(left).lpc(side).toFrame();
+        assertArrayEquals(interleave(left, right), decode(frame, 2));
+    }
+
+    @Test
+    public void decodesVerbatimSubframes() throws IOException {
+        int[] samples = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 1234};
+        ByteBuffer frame = new Encoder(samples.length, 0).verbatim(samples).toFrame();
+        assertArrayEquals(samples, decode(frame, 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsInvalidOrder() throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(7).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putInt(4).put((byte) 0).put((byte) 1).put((byte) 0);
+        ((Buffer) frame).flip();
+        decode(frame, 1);
+    }
+
+    static int[] decode(ByteBuffer frame, int channels) throws IOException {
+        PcmRingBuffer ring = new PcmRingBuffer(64, 4096);
+        int length = PcmDecoder.create(PcmDecoder.CODEC_LPC_RICE, channels).decode(frame, ring);
+        return read(ring, length);
+    }
+
+    static int[] read(PcmRingBuffer ring, int length) {
+        ByteBuffer pcm = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer chunk = ByteBuffer.allocate(ring.getSlotSize());
+        while (ring.poll(chunk) > 0) {
+            pcm.put(chunk);
+        }
+        ((Buffer) pcm).flip();
+        int[] samples = new int[length / 2];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = pcm.getShort();
+        }
+        return samples;
+    }
+
+    private static int[] interleave(int[] left, int[] right) {
+        int[] samples = new int[left.length * 2];
+        for (int i = 0; i < left.length; i++) {
+            samples[i * 2] = left[i];
+            samples[i * 2 + 1] = right[i];
+        }
+        return samples;
+    }
+
+    /** Writes the frame format with a fixed second order predictor. */
+    private static class Encoder {
+        private final ByteArrayOutputStream mOutput = new ByteArrayOutputStream();
+        private final int count;
+        private long bits;
+        private int bitCount;
+
+        Encoder(int count, int mode) {
+            this.count = count;
+            putInt(count);
+            mOutput.write(mode);
+        }
+
+        Encoder verbatim(int[] samples) {
+            mOutput.write(0);
+            for (int i = 0; i < count; i++) {
+                putInt(samples[i]);
+            }
+            return this;
+        }
+
+        Encoder lpc(int[] samples) {
+            int order = COEFFICIENTS.length;
+            mOutput.write(1);
+            mOutput.write(order);
+            mOutput.write(0);
+            for (int coefficient : COEFFICIENTS) {
+                mOutput.write(coefficient & 0xFF);
+                mOutput.write((coefficient >> 8) & 0xFF);
+            }
+            for (int i = 0; i < order; i++) {
+                putInt(samples[i]);
+            }
+            int parameter = 10;
+            mOutput.write(parameter);
+            for (int i = order; i < count; i++) {
+                long prediction = 0;
+                for (int j = 0; j < order; j++) {
+                    prediction += (long) COEFFICIENTS[j] * samples[i - 1 - j];
+                }
+                int residual = samples[i] - (int) prediction;
+                int value = (residual << 1) ^ (residual >> 31);
+                for (int q = value >>> parameter; q > 0; q--) {
+                    putBits(0, 1);
+                }
+                putBits(1, 1);
+                putBits(value & ((1 << parameter) - 1), parameter);
+            }
+            if(bitCount > 0) putBits(0, 8 - bitCount);
+            return this;
+        }
+
+        ByteBuffer toFrame() {
+            return ByteBuffer.wrap(mOutput.toByteArray());
+        }
+
+        private void putInt(int value) {
+            for (int i = 0; i < 4; i++) {
+                mOutput.write((value >> (i * 8)) & 0xFF);
+            }
+        }
+
+        private void putBits(int value, int count) {
+            bits = (bits << count) | (value & ((1L << count) - 1));
+            bitCount += count;
+            while (bitCount >= 8) {
+                bitCount -= 8;
+                mOutput.write((int) (bits >> bitCount) & 0xFF);
+            }
+        }
+    }
+}